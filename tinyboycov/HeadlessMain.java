@@ -0,0 +1,376 @@
+package tinyboycov;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import javr.io.HexFile;
+import tinyboy.core.TinyBoyEmulator;
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboy.util.AutomatedTester;
+import tinyboy.util.CoverageAnalysis;
+import tinyboycov.core.InputSequences;
+import tinyboycov.core.ReplayLog;
+import tinyboycov.core.TinyBoyInputGenerator;
+import tinyboycov.core.TracingTinyBoyEmulator;
+import tinyboycov.util.CoverageReporter;
+import tinyboycov.util.FuzzCampaign;
+
+/**
+ * A command-line tool for fuzzing a firmware image without any graphical
+ * display. Unlike <code>Main</code>, this never loads any AWT classes and,
+ * hence, can be run on servers and CI agents. For example:
+ *
+ * <pre>
+ * HeadlessMain tests/snake.hex -time 60 -threads 4 -corpus corpus/snake
+ * </pre>
+ *
+ * Every campaign derives its random choices from its own stream, split from a
+ * single master seed. Hence, a single campaign executes the same inputs (and
+ * writes the same replay log) on every run with a given seed. With several
+ * campaigns this does not hold, since they all stop as soon as their combined
+ * coverage reaches the target and, hence, how far each gets depends on thread
+ * timing. With <code>-log</code>, each campaign writes a replay log of every
+ * input it executed (suffixed with the campaign number when there is more than
+ * one). With <code>-replay</code>, the inputs in such a log are re-executed
+ * instead, where <code>-executions</code> limits this to a prefix of the log
+ * (e.g. for bisecting).
+ *
+ * The final line of output summarises the campaign as space-separated
+ * <code>key=value</code> pairs, and the exit code indicates whether the
+ * coverage target was reached.
+ */
+public class HeadlessMain {
+  private static final String USAGE = "usage: HeadlessMain firmware.hex [-time SECONDS] [-executions N] [-threads N]"
+      + " [-seed S] [-corpus DIR] [-target PERCENT] [-reports DIR] [-log FILE | -replay FILE]";
+
+  private final HexFile firmware;
+  private final CoverageAnalysis coverage;
+  private final File corpus;
+  private final double target;
+  private final List<FuzzCampaign> campaigns = new ArrayList<>();
+  /**
+   * Everything covered by previously recorded inputs.
+   */
+  private final BitSet seen = new BitSet();
+  /**
+   * The hashes of every input in the corpus, such that none is saved twice.
+   * This matters since coverage seen starts afresh on every run and, hence,
+   * the first inputs executed always appear to cover something new.
+   */
+  private final Set<Long> saved = new HashSet<>();
+  private int corpusSize;
+  /**
+   * Optional reporter, to which a snapshot is submitted whenever coverage grows.
+   */
+  private CoverageReporter reporter;
+  private String name;
+
+  public HeadlessMain(HexFile firmware, File corpus, double target) {
+    this.firmware = firmware;
+    this.coverage = new CoverageAnalysis(firmware);
+    this.corpus = corpus;
+    this.target = target;
+  }
+
+  /**
+   * Submit a coverage report for the firmware (under a given name) whenever
+   * coverage grows, rather than only at the end.
+   *
+   * @param name
+   * @param reporter
+   */
+  public void setReporter(String name, CoverageReporter reporter) {
+    this.name = name;
+    this.reporter = reporter;
+  }
+
+  /**
+   * Run a given number of campaigns in parallel, until either their combined
+   * coverage reaches the target or they exhaust their budgets. The built-in and
+   * corpus seeds are shared out round-robin between the campaigns, and no more
+   * campaigns are run than there are executions (since a campaign with no
+   * executions would never run its seeds).
+   *
+   * @param threads
+   *          The maximum number of campaigns to run.
+   * @param seed
+   *          The master seed from which each campaign's random stream is split.
+   * @param maxExecutions
+   *          The total number of executions, which is split across campaigns.
+   * @param maxNanos
+   *          The wall-clock time limit for every campaign.
+   * @param log
+   *          The replay log to write, or <code>null</code>.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void run(int threads, long seed, int maxExecutions, long maxNanos, File log)
+      throws IOException, InterruptedException {
+    threads = Math.max(1, Math.min(threads, maxExecutions));
+    SplittableRandom master = new SplittableRandom(seed);
+    List<TinyBoyEmulator> emulators = new ArrayList<>();
+    List<AutomatedTester.InputGenerator<TinyBoyInputSequence>> generators = new ArrayList<>();
+    List<ReplayLog.Writer> logs = new ArrayList<>();
+    try {
+      List<TinyBoyInputSequence> seeds = null;
+      for (int i = 0; i != threads; ++i) {
+        TracingTinyBoyEmulator emulator = new TracingTinyBoyEmulator();
+        TinyBoyInputGenerator generator = new TinyBoyInputGenerator(master.split());
+        generator.setTracer(emulator);
+        generator.setCycles(FuzzCampaign.ONE_SECOND);
+        if (seeds == null) {
+          seeds = loadSeeds(generator.getSeeds());
+        }
+        // Share out the built-in and corpus seeds, so none is executed twice
+        generator.clearSeeds();
+        for (int j = i; j < seeds.size(); j += threads) {
+          generator.addSeed(seeds.get(j));
+        }
+        if (log != null) {
+          ReplayLog.Writer writer = new ReplayLog.Writer(threads == 1 ? log : new File(log.getPath() + "." + i));
+          logs.add(writer);
+          generator.setReplayLog(writer);
+        }
+        emulators.add(emulator);
+        generators.add(generator);
+      }
+      run(emulators, generators, maxExecutions, maxNanos);
+    } finally {
+      for (ReplayLog.Writer writer : logs) {
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * Re-execute the inputs from a replay log.
+   *
+   * @param log
+   *          The replay log to read.
+   * @param maxExecutions
+   *          The number of inputs (from the start of the log) to execute.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void replay(File log, int maxExecutions) throws IOException, InterruptedException {
+    List<ReplayLog.Entry> entries = ReplayLog.read(log);
+    List<TinyBoyEmulator> emulators = new ArrayList<>();
+    List<AutomatedTester.InputGenerator<TinyBoyInputSequence>> generators = new ArrayList<>();
+    emulators.add(new TinyBoyEmulator());
+    generators.add(ReplayLog.replay(entries, maxExecutions));
+    run(emulators, generators, maxExecutions, Long.MAX_VALUE);
+  }
+
+  private void run(List<TinyBoyEmulator> emulators,
+      List<AutomatedTester.InputGenerator<TinyBoyInputSequence>> generators, int maxExecutions, long maxNanos)
+      throws InterruptedException {
+    int threads = generators.size();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i != threads; ++i) {
+      FuzzCampaign campaign = new FuzzCampaign(emulators.get(i), firmware, generators.get(i),
+          FuzzCampaign.ONE_SECOND);
+      campaign.setObserver(this::record);
+      campaigns.add(campaign);
+      int executions = maxExecutions / threads + (i < maxExecutions % threads ? 1 : 0);
+      workers[i] = new Thread(() -> campaign.run(executions, maxNanos, target), "fuzz-" + i);
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  /**
+   * Record the coverage of an input executed by any campaign, saving it into the
+   * corpus (and reporting on it) if it covered anything new.
+   *
+   * @param input
+   * @param output
+   */
+  private synchronized void record(TinyBoyInputSequence input, BitSet output) {
+    BitSet gained = (BitSet) output.clone();
+    gained.andNot(seen);
+    seen.or(output);
+    coverage.record(output);
+    if (coverage.getBranchCoverage() >= target) {
+      for (FuzzCampaign c : campaigns) {
+        c.stop();
+      }
+    }
+    if (reporter != null && !gained.isEmpty()) {
+      // NOTE: the snapshot is dropped if the reporter is falling behind
+      reporter.submit(name, firmware, coverage);
+    }
+    if (corpus != null && !gained.isEmpty() && saved.add(ReplayLog.hash(input))) {
+      try {
+        saveInput(input);
+      } catch (IOException e) {
+        System.err.println("Failed saving input to corpus: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Combine the built-in seeds with all inputs saved in the corpus directory (if
+   * any), dropping duplicates. Every seed is marked as saved, such that none is
+   * (re)saved into the corpus.
+   *
+   * @param builtins
+   *          The built-in seeds of the generator.
+   * @return
+   * @throws IOException
+   */
+  private List<TinyBoyInputSequence> loadSeeds(List<TinyBoyInputSequence> builtins) throws IOException {
+    List<TinyBoyInputSequence> inputs = new ArrayList<>(builtins);
+    if (corpus != null) {
+      corpus.mkdirs();
+      File[] files = corpus.listFiles((dir, name) -> name.endsWith(".txt"));
+      Arrays.sort(files);
+      for (File f : files) {
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+          int pulseLength = Integer.parseInt(in.readLine().trim());
+          inputs.add(InputSequences.parse(in.readLine().trim(), pulseLength));
+        } catch (RuntimeException e) {
+          throw new IOException("Invalid corpus file: " + f, e);
+        }
+      }
+      corpusSize = files.length;
+    }
+    List<TinyBoyInputSequence> seeds = new ArrayList<>();
+    for (TinyBoyInputSequence input : inputs) {
+      if (saved.add(ReplayLog.hash(input))) {
+        seeds.add(input);
+      }
+    }
+    return seeds;
+  }
+
+  private void saveInput(TinyBoyInputSequence input) throws IOException {
+    File f = new File(corpus, String.format("input-%06d.txt", corpusSize++));
+    try (Writer w = new FileWriter(f)) {
+      w.write(InputSequences.getPulseWidth(input) + "\n" + input + "\n");
+    }
+  }
+
+  /**
+   * Summarise the campaign as a single line of <code>key=value</code> pairs.
+   *
+   * @param name
+   * @param nanos
+   * @return
+   */
+  public String summarise(String name, long nanos) {
+    long executions = 0;
+    long cycles = 0;
+    for (FuzzCampaign c : campaigns) {
+      executions += c.getExecutions();
+      cycles += c.getEmulatedCycles();
+    }
+    return String.format("firmware=%s executions=%d cycles=%d seconds=%.3f instructions=%.2f branches=%.2f reached=%b",
+        name, executions, cycles, nanos / 1e9, coverage.getInstructionCoverage(), coverage.getBranchCoverage(),
+        coverage.getBranchCoverage() >= target);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String filename = null;
+    double seconds = Double.POSITIVE_INFINITY;
+    int executions = Integer.MAX_VALUE;
+    int threads = 1;
+    long seed = 854269;
+    File corpus = null;
+    double target = 95.0;
+    File reports = null;
+    File log = null;
+    File replay = null;
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        switch (args[i]) {
+        case "-time":
+          seconds = Double.parseDouble(args[++i]);
+          break;
+        case "-executions":
+          executions = Integer.parseInt(args[++i]);
+          break;
+        case "-threads":
+          threads = Integer.parseInt(args[++i]);
+          break;
+        case "-seed":
+          seed = Long.parseLong(args[++i]);
+          break;
+        case "-corpus":
+          corpus = new File(args[++i]);
+          break;
+        case "-target":
+          target = Double.parseDouble(args[++i]);
+          break;
+        case "-reports":
+          reports = new File(args[++i]);
+          break;
+        case "-log":
+          log = new File(args[++i]);
+          break;
+        case "-replay":
+          replay = new File(args[++i]);
+          break;
+        default:
+          if (args[i].startsWith("-") || filename != null) {
+            throw new IllegalArgumentException(args[i]);
+          }
+          filename = args[i];
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+      filename = null;
+    }
+    if (filename == null || threads < 1 || (log != null && replay != null)) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    if (executions == Integer.MAX_VALUE && seconds == Double.POSITIVE_INFINITY && replay == null) {
+      // Match the budget used by the tests
+      executions = 50;
+    }
+    HexFile firmware = null;
+    try {
+      firmware = new HexFile.Reader(new FileReader(filename)).readAll();
+    } catch (IOException e) {
+      System.err.println("Failed reading firmware: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    long maxNanos = seconds == Double.POSITIVE_INFINITY ? Long.MAX_VALUE : (long) (seconds * 1e9);
+    String name = new File(filename).getName().replace(".hex", "");
+    HeadlessMain main = new HeadlessMain(firmware, corpus, target);
+    CoverageReporter reporter = reports == null ? null : new CoverageReporter(reports);
+    if (reporter != null) {
+      main.setReporter(name, reporter);
+    }
+    long start = System.nanoTime();
+    if (replay != null) {
+      main.replay(replay, executions);
+    } else {
+      main.run(threads, seed, executions, maxNanos, log);
+    }
+    long nanos = System.nanoTime() - start;
+    if (reporter != null) {
+      // Ensure the final coverage is reported, even if snapshots were dropped
+      reporter.put(name, firmware, main.coverage);
+      reporter.close();
+    }
+    System.out.println(main.summarise(name, nanos));
+    System.exit(main.coverage.getBranchCoverage() >= target ? 0 : 1);
+  }
+}
@@ -26,6 +26,9 @@ import tinyboy.views.TinyBoyPeripheral;
 /**
  * A simple tool for generate test coverage information for the AVR simulator.
  *
+ * This opens the graphical simulator. See <code>HeadlessMain</code> for fuzzing
+ * from the command-line without a display.
+ *
  * @author David J. Pearce
  *
  */
@@ -0,0 +1,124 @@
+package tinyboycov.core;
+
+import tinyboy.core.ControlPad;
+import tinyboy.core.TinyBoyInputSequence;
+
+/**
+ * Utilities for converting between a TinyBoyInputSequence and its packed pulse
+ * encoding. In the packed encoding each pulse occupies one byte, where
+ * <code>0</code> indicates no button and <code>1 + ordinal</code> indicates the
+ * given control pad button. This gives a compact, comparable representation
+ * which the sequence itself does not offer (e.g. it has no way to read a pulse
+ * back).
+ */
+public class InputSequences {
+	/**
+	 * The number of distinct symbols in the packed encoding (i.e. every button plus
+	 * the empty pulse).
+	 */
+	public static final int NUM_SYMBOLS = ControlPad.Button.values().length + 1;
+
+	/**
+	 * Determine the number of pulses in a given input sequence.
+	 *
+	 * @param seq
+	 * @return
+	 */
+	public static int getPulseCount(TinyBoyInputSequence seq) {
+		return seq.toString().length();
+	}
+
+	/**
+	 * Determine the width (in cycles) of each pulse in a given input sequence.
+	 *
+	 * @param seq
+	 * @return
+	 */
+	public static int getPulseWidth(TinyBoyInputSequence seq) {
+		int count = getPulseCount(seq);
+		return count == 0 ? 0 : seq.size() / (count * ControlPad.Button.values().length);
+	}
+
+	/**
+	 * Turn a string representation of an input sequence (e.g. "LLR_R_UUD") into an
+	 * instanceof TinyBoyInputSequence.
+	 *
+	 * @param input
+	 * @param pulseLength
+	 * @return
+	 */
+	public static TinyBoyInputSequence parse(String input, int pulseLength) {
+		TinyBoyInputSequence tbi = new TinyBoyInputSequence(input.length(), pulseLength);
+		for (int i = 0; i != input.length(); ++i) {
+			char c = input.charAt(i);
+			int symbol = encode(c);
+			if (symbol == 0 && c != '_') {
+				throw new IllegalArgumentException("Invalid input sequence: " + input);
+			}
+			tbi.setPulse(i, toButton(symbol));
+		}
+		return tbi;
+	}
+
+	/**
+	 * Pack a given input sequence into one byte per pulse.
+	 *
+	 * @param seq
+	 * @return
+	 */
+	public static byte[] encode(TinyBoyInputSequence seq) {
+		String str = seq.toString();
+		byte[] pulses = new byte[str.length()];
+		for (int i = 0; i != pulses.length; ++i) {
+			pulses[i] = (byte) encode(str.charAt(i));
+		}
+		return pulses;
+	}
+
+	/**
+	 * Unpack a given packed encoding into an input sequence with the given pulse
+	 * width.
+	 *
+	 * @param pulses
+	 * @param pulseLength
+	 * @return
+	 */
+	public static TinyBoyInputSequence decode(byte[] pulses, int pulseLength) {
+		TinyBoyInputSequence seq = new TinyBoyInputSequence(pulses.length, pulseLength);
+		for (int i = 0; i != pulses.length; ++i) {
+			seq.setPulse(i, toButton(pulses[i]));
+		}
+		return seq;
+	}
+
+	/**
+	 * Convert a symbol from the packed encoding into a control pad button, or
+	 * <code>null</code> for the empty pulse.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public static ControlPad.Button toButton(int symbol) {
+		return symbol == 0 ? null : ControlPad.Button.values()[symbol - 1];
+	}
+
+	/**
+	 * Convert a control pad button (or <code>null</code>) into a symbol from the
+	 * packed encoding.
+	 *
+	 * @param button
+	 * @return
+	 */
+	public static int toSymbol(ControlPad.Button button) {
+		return button == null ? 0 : button.ordinal() + 1;
+	}
+
+	private static int encode(char c) {
+		for (ControlPad.Button b : ControlPad.Button.values()) {
+			if (b.toString().charAt(0) == c) {
+				return b.ordinal() + 1;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,319 @@
+package tinyboycov.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * A dictionary of "button macros", which are short runs of pulses that occur
+ * frequently in inputs which increased coverage. For example, the hand-written
+ * sequence for snake is largely made up of a few motifs (such as
+ * <code>URLUURDRRLR_UUURULRLU___</code>) repeated over and over. Inserting such
+ * motifs wholesale gets to deep game states much faster than mutating one
+ * pulse at a time.
+ *
+ * Macros are mined as n-grams over the packed pulse encoding (see
+ * {@link InputSequences}) and stored in a trie, where each node corresponds to
+ * exactly one n-gram. Every node counts how often its n-gram has been seen and
+ * how much coverage mutations using it have yielded. Macros are then selected
+ * with probability proportional to their weight.
+ *
+ * The trie has a fixed capacity. When it fills up, every count is halved and
+ * those n-grams whose count drops to zero are pruned, making room for new ones.
+ * Hence, motifs which keep recurring survive whilst stale ones are forgotten.
+ * Since pruned nodes are reused, macros are identified by handles which also
+ * record the generation of their node, such that credit for a pruned macro is
+ * simply dropped.
+ */
+public class MacroDictionary {
+	/**
+	 * The shortest run of pulses considered a macro.
+	 */
+	private static final int MIN_LENGTH = 3;
+	/**
+	 * The longest run of pulses considered a macro.
+	 */
+	private static final int MAX_LENGTH = 24;
+	/**
+	 * The number of times an n-gram must be seen before it becomes a macro.
+	 */
+	private static final int MIN_COUNT = 2;
+	/**
+	 * The maximum number of macros available for selection at any one time.
+	 */
+	private static final int MAX_MACROS = 64;
+	/**
+	 * The maximum number of trie nodes. Once reached, the trie is decayed to make
+	 * room for new n-grams. This must fit in the lower half of a handle.
+	 */
+	private static final int MAX_NODES = 1 << 16;
+
+	private static final int SYMBOLS = InputSequences.NUM_SYMBOLS;
+
+	// Trie nodes are stored in flat arrays indexed by node, with the root at 0.
+	private int[] children = new int[1024 * SYMBOLS];
+	private int[] parent = new int[1024];
+	private byte[] symbol = new byte[1024];
+	private int[] depth = new int[1024];
+	private int[] count = new int[1024];
+	private int[] credit = new int[1024];
+	// Incremented whenever a node is pruned, such that stale handles are detected.
+	private int[] generation = new int[1024];
+	private int size = 1;
+	// Pruned nodes are chained through their parent field, ending with zero.
+	private int free = 0;
+	private int numFree = 0;
+
+	// The current selection of macros, along with their cumulative weights.
+	private int[] macros = new int[0];
+	private long[] weights = new long[0];
+	private boolean dirty = false;
+
+	/**
+	 * Mine all n-grams from the packed encoding of an input which increased
+	 * coverage.
+	 *
+	 * @param pulses
+	 *            Packed pulse encoding of the input.
+	 * @param length
+	 *            The number of pulses (from the start) which were executed.
+	 */
+	public void mine(byte[] pulses, int length) {
+		for (int i = 0; i < length; ++i) {
+			// Ensure there is room for the longest n-gram starting here
+			while (MAX_NODES - size + numFree < MAX_LENGTH) {
+				decay();
+			}
+			int node = 0;
+			int end = Math.min(length, i + MAX_LENGTH);
+			for (int j = i; j < end; ++j) {
+				node = child(node, pulses[j]);
+				count[node]++;
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Credit a given macro with the coverage it has yielded.
+	 *
+	 * @param macro
+	 *            Macro previously returned from <code>select()</code>.
+	 * @param gain
+	 *            The number of newly covered instructions.
+	 */
+	public void credit(int macro, int gain) {
+		int node = macro & (MAX_NODES - 1);
+		if (generation[node] == (macro >>> 16)) {
+			credit[node] += gain;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Check whether any macros are available yet.
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		refresh();
+		return macros.length == 0;
+	}
+
+	/**
+	 * Select a macro at random, weighted by how often it occurs and how much
+	 * coverage it has yielded.
+	 *
+	 * @param random
+	 * @return The selected macro, or <code>-1</code> if none are available.
+	 */
+	public int select(SplittableRandom random) {
+		refresh();
+		if (macros.length == 0) {
+			return -1;
+		}
+		long total = weights[weights.length - 1];
+		long roll = (long) (random.nextDouble() * total);
+		int index = Arrays.binarySearch(weights, roll + 1);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		int node = macros[index];
+		return (generation[node] << 16) | node;
+	}
+
+	/**
+	 * Get the pulses making up a given macro.
+	 *
+	 * @param macro
+	 * @return
+	 */
+	public byte[] getPulses(int macro) {
+		int leaf = macro & (MAX_NODES - 1);
+		byte[] pulses = new byte[depth[leaf]];
+		for (int node = leaf; node != 0; node = parent[node]) {
+			pulses[depth[node] - 1] = symbol[node];
+		}
+		return pulses;
+	}
+
+	/**
+	 * Insert a macro at a given position, shifting the remaining pulses along (and
+	 * truncating those which fall off the end).
+	 *
+	 * @param pulses
+	 * @param macro
+	 * @param position
+	 * @return
+	 */
+	public byte[] insert(byte[] pulses, int macro, int position) {
+		byte[] motif = getPulses(macro);
+		byte[] result = Arrays.copyOf(pulses, pulses.length);
+		int len = Math.min(motif.length, pulses.length - position);
+		System.arraycopy(pulses, position, result, position + len, pulses.length - position - len);
+		System.arraycopy(motif, 0, result, position, len);
+		return result;
+	}
+
+	/**
+	 * Overwrite the pulses at a given position with a macro.
+	 *
+	 * @param pulses
+	 * @param macro
+	 * @param position
+	 * @return
+	 */
+	public byte[] overwrite(byte[] pulses, int macro, int position) {
+		byte[] motif = getPulses(macro);
+		byte[] result = Arrays.copyOf(pulses, pulses.length);
+		int len = Math.min(motif.length, pulses.length - position);
+		System.arraycopy(motif, 0, result, position, len);
+		return result;
+	}
+
+	/**
+	 * Find (or create) the child of a given node for a given symbol. This assumes
+	 * there is room for a new node.
+	 *
+	 * @param node
+	 * @param sym
+	 * @return
+	 */
+	private int child(int node, byte sym) {
+		int slot = node * SYMBOLS + sym;
+		int c = children[slot];
+		if (c == 0) {
+			if (free != 0) {
+				c = free;
+				free = parent[c];
+				numFree--;
+				Arrays.fill(children, c * SYMBOLS, (c + 1) * SYMBOLS, 0);
+			} else {
+				if (size == parent.length) {
+					grow();
+				}
+				c = size++;
+			}
+			children[slot] = c;
+			parent[c] = node;
+			symbol[c] = sym;
+			depth[c] = depth[node] + 1;
+			count[c] = 0;
+			credit[c] = 0;
+		}
+		return c;
+	}
+
+	/**
+	 * Halve the count of every n-gram, pruning those whose count drops to zero.
+	 * Since an n-gram is counted whenever any extension of it is, no node is
+	 * pruned whilst any of its children remain.
+	 */
+	private void decay() {
+		BitSet pruned = new BitSet(size);
+		for (int node = 1; node < size; ++node) {
+			if (count[node] > 0) {
+				count[node] >>= 1;
+				if (count[node] == 0) {
+					pruned.set(node);
+				}
+			}
+		}
+		for (int node = pruned.nextSetBit(0); node >= 0; node = pruned.nextSetBit(node + 1)) {
+			int p = parent[node];
+			if (p == 0 || !pruned.get(p)) {
+				// Detach from a surviving parent
+				children[p * SYMBOLS + symbol[node]] = 0;
+			}
+		}
+		for (int node = pruned.nextSetBit(0); node >= 0; node = pruned.nextSetBit(node + 1)) {
+			generation[node] = (generation[node] + 1) & 0x7FFF;
+			parent[node] = free;
+			free = node;
+			numFree++;
+		}
+		dirty = true;
+	}
+
+	private void grow() {
+		int capacity = parent.length * 2;
+		children = Arrays.copyOf(children, capacity * SYMBOLS);
+		parent = Arrays.copyOf(parent, capacity);
+		symbol = Arrays.copyOf(symbol, capacity);
+		depth = Arrays.copyOf(depth, capacity);
+		count = Arrays.copyOf(count, capacity);
+		credit = Arrays.copyOf(credit, capacity);
+		generation = Arrays.copyOf(generation, capacity);
+	}
+
+	/**
+	 * Recompute the selection of macros after the dictionary has changed. Only the
+	 * <code>MAX_MACROS</code> heaviest candidates are retained.
+	 */
+	private void refresh() {
+		if (!dirty) {
+			return;
+		}
+		int[] candidates = new int[MAX_MACROS];
+		int n = 0;
+		for (int node = 1; node < size; ++node) {
+			if (depth[node] >= MIN_LENGTH && count[node] >= MIN_COUNT) {
+				long weight = weight(node);
+				if (n < MAX_MACROS) {
+					candidates[n++] = node;
+				} else {
+					// Replace the lightest candidate if this one is heavier
+					int lightest = 0;
+					for (int k = 1; k < n; ++k) {
+						if (weight(candidates[k]) < weight(candidates[lightest])) {
+							lightest = k;
+						}
+					}
+					if (weight > weight(candidates[lightest])) {
+						candidates[lightest] = node;
+					}
+				}
+			}
+		}
+		macros = new int[n];
+		weights = new long[n];
+		long total = 0;
+		for (int k = 0; k != n; ++k) {
+			macros[k] = candidates[k];
+			total += weight(macros[k]);
+			weights[k] = total;
+		}
+		dirty = false;
+	}
+
+	/**
+	 * The weight of a macro. Longer and more frequent motifs are preferred, and
+	 * every unit of coverage a macro yields boosts it further.
+	 *
+	 * @param node
+	 * @return
+	 */
+	private long weight(int node) {
+		return (long) count[node] * depth[node] * (1 + credit[node]);
+	}
+}
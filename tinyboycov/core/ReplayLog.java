@@ -0,0 +1,228 @@
+package tinyboycov.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboy.util.AutomatedTester;
+
+/**
+ * A compact binary log of every input executed during a fuzzing run. Each entry
+ * records a hash of the candidate input, a hash of the parent it was derived
+ * from, the operator which derived it and how many new instructions it covered.
+ * The pulses themselves are also stored (packed two per byte), such that a run
+ * can be re-executed (or bisected, by re-executing only a prefix) without
+ * regenerating anything.
+ */
+public class ReplayLog {
+	/**
+	 * Identifies the start of a replay log.
+	 */
+	private static final int MAGIC = 0x54425246; // "TBRF"
+	private static final int VERSION = 1;
+
+	/**
+	 * The input was given, rather than generated (e.g. a hand-written seed).
+	 */
+	public static final byte SEED = 0;
+	/**
+	 * The input was derived by randomly mutating individual pulses.
+	 */
+	public static final byte POINT = 1;
+	/**
+	 * The input was derived by inserting a macro.
+	 */
+	public static final byte MACRO_INSERT = 2;
+	/**
+	 * The input was derived by overwriting pulses with a macro.
+	 */
+	public static final byte MACRO_OVERWRITE = 3;
+	/**
+	 * The input was derived by mutating the pulses leading up to a comparison.
+	 */
+	public static final byte COMPARE = 4;
+
+	/**
+	 * Compute the 64-bit FNV-1a hash of an input from its packed encoding and
+	 * pulse width. Unlike the identity hash of an input sequence, this is the same
+	 * across runs.
+	 *
+	 * @param pulses
+	 * @param pulseLength
+	 * @return
+	 */
+	public static long hash(byte[] pulses, int pulseLength) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i != 4; ++i) {
+			h = (h ^ ((pulseLength >>> (i * 8)) & 0xFF)) * 0x100000001b3L;
+		}
+		for (byte b : pulses) {
+			h = (h ^ b) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Compute the hash of a given input sequence.
+	 *
+	 * @param seq
+	 * @return
+	 */
+	public static long hash(TinyBoyInputSequence seq) {
+		return hash(InputSequences.encode(seq), InputSequences.getPulseWidth(seq));
+	}
+
+	/**
+	 * A single entry in the replay log.
+	 */
+	public static final class Entry {
+		public final long candidate;
+		public final long parent;
+		public final byte operator;
+		public final int delta;
+		public final int pulseLength;
+		public final byte[] pulses;
+
+		public Entry(long candidate, long parent, byte operator, int delta, int pulseLength, byte[] pulses) {
+			this.candidate = candidate;
+			this.parent = parent;
+			this.operator = operator;
+			this.delta = delta;
+			this.pulseLength = pulseLength;
+			this.pulses = pulses;
+		}
+
+		/**
+		 * Reconstruct the input sequence executed for this entry.
+		 *
+		 * @return
+		 */
+		public TinyBoyInputSequence toInputSequence() {
+			return InputSequences.decode(pulses, pulseLength);
+		}
+	}
+
+	/**
+	 * Appends entries to a replay log.
+	 */
+	public static final class Writer implements Closeable {
+		private final DataOutputStream out;
+
+		public Writer(File file) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+		}
+
+		/**
+		 * Append an entry for an executed input.
+		 *
+		 * @param seq
+		 *            The input executed.
+		 * @param parent
+		 *            The input it was derived from, or <code>null</code>.
+		 * @param operator
+		 *            The operator used to derive it.
+		 * @param delta
+		 *            The number of newly covered instructions.
+		 * @throws IOException
+		 */
+		public void write(TinyBoyInputSequence seq, TinyBoyInputSequence parent, byte operator, int delta)
+				throws IOException {
+			byte[] pulses = InputSequences.encode(seq);
+			int pulseLength = InputSequences.getPulseWidth(seq);
+			out.writeLong(hash(pulses, pulseLength));
+			out.writeLong(parent == null ? 0 : hash(parent));
+			out.writeByte(operator);
+			out.writeInt(delta);
+			out.writeInt(pulseLength);
+			out.writeInt(pulses.length);
+			for (int i = 0; i < pulses.length; i += 2) {
+				int hi = i + 1 < pulses.length ? pulses[i + 1] : 0;
+				out.writeByte((hi << 4) | pulses[i]);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read all entries from a replay log.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Entry> read(File file) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("Not a replay log: " + file);
+			}
+			while (true) {
+				long candidate;
+				try {
+					candidate = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				long parent = in.readLong();
+				byte operator = in.readByte();
+				int delta = in.readInt();
+				int pulseLength = in.readInt();
+				byte[] pulses = new byte[in.readInt()];
+				for (int i = 0; i < pulses.length; i += 2) {
+					int b = in.readUnsignedByte();
+					pulses[i] = (byte) (b & 0xF);
+					if (i + 1 < pulses.length) {
+						pulses[i + 1] = (byte) (b >>> 4);
+					}
+				}
+				entries.add(new Entry(candidate, parent, operator, delta, pulseLength, pulses));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Construct an input generator which re-executes the first <code>n</code>
+	 * inputs of a replay log, in order. Bisecting on <code>n</code> finds the
+	 * first input responsible for some change in behaviour.
+	 *
+	 * @param entries
+	 * @param n
+	 * @return
+	 */
+	public static AutomatedTester.InputGenerator<TinyBoyInputSequence> replay(List<Entry> entries, int n) {
+		return new AutomatedTester.InputGenerator<TinyBoyInputSequence>() {
+			private int index = 0;
+
+			@Override
+			public TinyBoyInputSequence generate() {
+				if (index < Math.min(n, entries.size())) {
+					return entries.get(index++).toInputSequence();
+				}
+				return null;
+			}
+
+			@Override
+			public void record(TinyBoyInputSequence input, BitSet output) {
+				// Nothing to learn, since the inputs are fixed
+			}
+		};
+	}
+}
@@ -1,16 +1,18 @@
 package tinyboycov.core;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.SplittableRandom;
 
 import tinyboy.core.ControlPad;
 import tinyboy.core.TinyBoyInputSequence;
 import tinyboy.util.AutomatedTester;
-import tinyboycov.tests.TestUtils;
 
 /**
  * The TinyBoy Input Generator is responsible for generating and refining inputs
@@ -23,15 +25,18 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 
 	/**
 	 * Use random number generation with fixed seed for deterministic behaviour. You
-	 * can use a proper seed if you prefer. This may work better.
+	 * can use a proper seed if you prefer. This may work better. When running
+	 * several generators in parallel, each should be given its own stream split
+	 * from a single master.
 	 */
-	private Random random = new Random(854269); // try different seeds
+	private SplittableRandom random;
 
 	boolean init = true;
 	int size = 0;
 
-	private ConcurrentHashMap<TinyBoyInputSequence, ArrayList<TinyBoyInputSequence>> parents = new ConcurrentHashMap<TinyBoyInputSequence, ArrayList<TinyBoyInputSequence>>();
-	private ConcurrentHashMap<TinyBoyInputSequence, Pair> pairs = new ConcurrentHashMap<TinyBoyInputSequence, Pair>();
+	// NOTE: insertion ordered so that iteration is the same on every run
+	private LinkedHashMap<TinyBoyInputSequence, ArrayList<TinyBoyInputSequence>> parents = new LinkedHashMap<TinyBoyInputSequence, ArrayList<TinyBoyInputSequence>>();
+	private LinkedHashMap<TinyBoyInputSequence, Pair> pairs = new LinkedHashMap<TinyBoyInputSequence, Pair>();
 
 	int m = 4;
 	int noStartingParents = 2; // (2)
@@ -42,6 +47,49 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 	private int noChildren = 4; // 3 (4)
 	private int noBest = 2; // (1) (2)
 
+	/**
+	 * The chance (out of 100) that a child is produced by a macro mutation rather
+	 * than by point mutation, once the dictionary has macros available.
+	 */
+	private static final int MACRO_CHANCE = 30;
+	/**
+	 * The chance (out of 100) that a child is produced by mutating the pulses
+	 * leading up to its parent's closest comparison, when one is known.
+	 */
+	private static final int COMPARE_CHANCE = 30;
+	/**
+	 * The number of pulses (up to and including the one active at the comparison)
+	 * which are considered for mutation.
+	 */
+	private static final int COMPARE_WINDOW = 4;
+
+	/**
+	 * Macros mined from those inputs which increased coverage.
+	 */
+	private MacroDictionary macros = new MacroDictionary();
+	/**
+	 * Identifies how each child was produced, so the macro used (if any) can be
+	 * credited with any coverage it yields and the child can be logged.
+	 */
+	private HashMap<TinyBoyInputSequence, Origin> origins = new HashMap<TinyBoyInputSequence, Origin>();
+	/**
+	 * Optional log of every input recorded, for replaying the run later.
+	 */
+	private ReplayLog.Writer log;
+	/**
+	 * Optional emulator tracing the comparisons guarding uncovered branches.
+	 */
+	private TracingTinyBoyEmulator tracer;
+	/**
+	 * The maximum number of cycles each input is executed for. Pulses beyond this
+	 * never reach the emulator and, hence, are neither mined nor mutated.
+	 */
+	private int cycles = Integer.MAX_VALUE;
+	/**
+	 * The union of coverage seen across all recorded inputs.
+	 */
+	private BitSet coverage = new BitSet();
+
 	private TinyBoyInputSequence input = new TinyBoyInputSequence(PULSE_COUNT, PULSE_LENGTH);
 	int i = 0;
 
@@ -59,15 +107,95 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 
 	private ArrayList<TinyBoyInputSequence> possible = new ArrayList<TinyBoyInputSequence>() {
 		{
-			add(TestUtils.createInputSequence(snake2, (int) (125 * 8_000)));
-			add(TestUtils.createInputSequence(tetris2, (int) (125 * 8_000)));
+			add(InputSequences.parse(snake2, (int) (125 * 8_000)));
+			add(InputSequences.parse(tetris2, (int) (125 * 8_000)));
 
-			add(TestUtils.createInputSequence(soku, PULSE_LENGTH));
-			add(TestUtils.createInputSequence(snake, PULSE_LENGTH));
-			add(TestUtils.createInputSequence(tetris, PULSE_LENGTH));
+			add(InputSequences.parse(soku, PULSE_LENGTH));
+			add(InputSequences.parse(snake, PULSE_LENGTH));
+			add(InputSequences.parse(tetris, PULSE_LENGTH));
 		}
 	};
 
+	public TinyBoyInputGenerator() {
+		this(854269); // try different seeds
+	}
+
+	/**
+	 * Construct a generator whose random choices are determined by a given seed.
+	 *
+	 * @param seed
+	 */
+	public TinyBoyInputGenerator(long seed) {
+		this(new SplittableRandom(seed));
+	}
+
+	/**
+	 * Construct a generator whose random choices are drawn from a given stream.
+	 *
+	 * @param random
+	 */
+	public TinyBoyInputGenerator(SplittableRandom random) {
+		this.random = random;
+	}
+
+	/**
+	 * Log every input recorded from now on to a given replay log.
+	 *
+	 * @param log
+	 */
+	public void setReplayLog(ReplayLog.Writer log) {
+		this.log = log;
+	}
+
+	/**
+	 * Use the comparisons traced by a given emulator (which must be the one
+	 * executing the generated inputs) to target mutations.
+	 *
+	 * @param tracer
+	 */
+	public void setTracer(TracingTinyBoyEmulator tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Set the maximum number of cycles each input is executed for (i.e. as given
+	 * to the tester).
+	 *
+	 * @param cycles
+	 */
+	public void setCycles(int cycles) {
+		this.cycles = cycles;
+	}
+
+	/**
+	 * Add an input sequence (e.g. from a saved corpus) which will be tried before
+	 * any generated inputs.
+	 *
+	 * @param seq
+	 */
+	public void addSeed(TinyBoyInputSequence seq) {
+		possible.add(seq);
+	}
+
+	/**
+	 * Get the input sequences which will be tried before any generated inputs,
+	 * starting with the built-in ones.
+	 *
+	 * @return
+	 */
+	public List<TinyBoyInputSequence> getSeeds() {
+		return new ArrayList<TinyBoyInputSequence>(possible);
+	}
+
+	/**
+	 * Remove every input sequence which would be tried before any generated
+	 * inputs, including the built-in ones. This allows seeds to be shared out
+	 * amongst several generators running in parallel.
+	 */
+	public void clearSeeds() {
+		possible.clear();
+	}
+
 	@Override
 	public TinyBoyInputSequence generate() {
 
@@ -100,14 +228,12 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 			}
 
 			parents.clear();
+			origins.clear();
 			for (TinyBoyInputSequence seq : bestStartingParents) {
 				parents.put(seq, selectAndMutate(seq));
 			}
 
-			for (Map.Entry<TinyBoyInputSequence, Pair> p : pairs.entrySet()) {
-				if (!bestStartingParents.contains(p.getKey()))
-					pairs.remove(p.getKey());
-			}
+			pairs.keySet().removeIf(k -> !bestStartingParents.contains(k));
 			init = false;
 
 		}
@@ -138,15 +264,13 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 		}
 
 		parents.clear();
+		origins.clear();
 
 		for (TinyBoyInputSequence seq : nps) {
 			parents.put(seq, selectAndMutate(seq));
 		}
 
-		for (Map.Entry<TinyBoyInputSequence, Pair> p : pairs.entrySet()) {
-			if (!nps.contains(p.getKey()))
-				pairs.remove(p.getKey());
-		}
+		pairs.keySet().removeIf(k -> !nps.contains(k));
 
 		for (Map.Entry<TinyBoyInputSequence, ArrayList<TinyBoyInputSequence>> p : parents.entrySet()) {
 			if (pairs.get(p.getKey()) == null) {
@@ -168,7 +292,7 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 
 	private TinyBoyInputSequence getBestInputSeq() {
 		Object[] crunchifyKeys = pairs.keySet().toArray();
-		Object key = crunchifyKeys[new Random().nextInt(crunchifyKeys.length)];
+		Object key = crunchifyKeys[random.nextInt(crunchifyKeys.length)];
 
 		Pair best = pairs.get(key);
 
@@ -204,14 +328,70 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 			System.out.println("	 null");
 		}
 
+		Origin origin = origins.remove(seq);
+		int gain = updateMacros(seq, output, origin);
+		if (log != null) {
+			try {
+				log.write(seq, origin == null ? null : origin.parent, origin == null ? ReplayLog.SEED : origin.operator,
+						gain);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		int target = -1;
+		ControlPad.Button button = null;
+		if (tracer != null) {
+			tracer.record(output);
+			int cycle = tracer.getClosestCycle();
+			if (cycle >= 0) {
+				target = cycle / InputSequences.getPulseWidth(seq);
+				button = tracer.getClosestButton();
+			}
+		}
+
 		if (i < possible.size())
 			return;
 
 		if (pairs.get(seq) == null) {
-			pairs.put(seq, new Pair(seq, output));
+			pairs.put(seq, new Pair(seq, output, target, button));
 		}
+	}
+
+	/**
+	 * Mine macros from any input which increased overall coverage, and credit the
+	 * macro which produced it (if any).
+	 *
+	 * @param seq
+	 * @param output
+	 * @param origin
+	 * @return The number of newly covered instructions.
+	 */
+	private int updateMacros(TinyBoyInputSequence seq, BitSet output, Origin origin) {
+		BitSet gained = (BitSet) output.clone();
+		gained.andNot(coverage);
+		int gain = gained.cardinality();
+		if (gain > 0) {
+			coverage.or(output);
+			macros.mine(InputSequences.encode(seq), getExecutedPulses(seq));
+			if (origin != null && origin.macro >= 0) {
+				macros.credit(origin.macro, gain);
+			}
+		}
+		return gain;
+	}
 
-		System.out.println(getBestInputSeq());
+	/**
+	 * Determine how many pulses of a given input sequence are (at least partly)
+	 * executed, given the maximum number of cycles.
+	 *
+	 * @param seq
+	 * @return
+	 */
+	private int getExecutedPulses(TinyBoyInputSequence seq) {
+		int count = InputSequences.getPulseCount(seq);
+		long width = InputSequences.getPulseWidth(seq);
+		return (int) Math.min(count, (cycles + width - 1) / width);
 	}
 
 	private TinyBoyInputSequence getParent(TinyBoyInputSequence input) {
@@ -259,7 +439,7 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 		}
 
 		while (children.size() < noChildren) {
-			seq = randomlyMutate(parent, n, m);
+			seq = mutate(parent);
 			if (!seqs.contains(seq))
 				children.add(seq);
 
@@ -268,6 +448,75 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 		return children;
 	}
 
+	/**
+	 * Mutate a given input sequence, either by inserting (or overwriting with) a
+	 * macro from the dictionary or by randomly mutating individual pulses.
+	 *
+	 * @param root
+	 *            The input sequence to mutate.
+	 * @return
+	 */
+	private TinyBoyInputSequence mutate(TinyBoyInputSequence root) {
+		Pair pair = pairs.get(root);
+		if (pair != null && pair.target >= 0 && random.nextInt(100) < COMPARE_CHANCE) {
+			return mutateBefore(root, pair.target, pair.button);
+		}
+		if (random.nextInt(100) >= MACRO_CHANCE || macros.isEmpty()) {
+			return randomlyMutate(root, n, m);
+		}
+		int macro = macros.select(random);
+		byte[] pulses = InputSequences.encode(root);
+		int position = random.nextInt(getExecutedPulses(root));
+		byte operator;
+		if (random.nextBoolean()) {
+			pulses = macros.insert(pulses, macro, position);
+			operator = ReplayLog.MACRO_INSERT;
+		} else {
+			pulses = macros.overwrite(pulses, macro, position);
+			operator = ReplayLog.MACRO_OVERWRITE;
+		}
+		TinyBoyInputSequence nRoot = InputSequences.decode(pulses, InputSequences.getPulseWidth(root));
+		origins.put(nRoot, new Origin(root, operator, macro));
+		return nRoot;
+	}
+
+	/**
+	 * Mutate one or more of the pulses leading up to a given pulse, at which a
+	 * comparison guarding an uncovered branch came close to going the other way.
+	 * When the comparison tested a control pad button, that button is pushed on
+	 * the given pulse (and possibly some of those before). Otherwise, each
+	 * mutated pulse is given a different button from before.
+	 *
+	 * @param root
+	 *            The input sequence to mutate.
+	 * @param target
+	 *            The pulse active when the comparison occurred.
+	 * @param button
+	 *            The button tested by the comparison, or <code>null</code>.
+	 * @return
+	 */
+	private TinyBoyInputSequence mutateBefore(TinyBoyInputSequence root, int target, ControlPad.Button button) {
+		byte[] pulses = InputSequences.encode(root);
+		int end = Math.min(target, pulses.length - 1);
+		int start = Math.max(0, end - COMPARE_WINDOW + 1);
+		int count = 1 + random.nextInt(end - start + 1);
+		if (button != null) {
+			pulses[end] = (byte) InputSequences.toSymbol(button);
+		}
+		for (int k = 0; k != count; ++k) {
+			int index = start + random.nextInt(end - start + 1);
+			if (button != null) {
+				pulses[index] = (byte) InputSequences.toSymbol(button);
+			} else {
+				int symbol = 1 + random.nextInt(InputSequences.NUM_SYMBOLS - 1);
+				pulses[index] = (byte) ((pulses[index] + symbol) % InputSequences.NUM_SYMBOLS);
+			}
+		}
+		TinyBoyInputSequence nRoot = InputSequences.decode(pulses, InputSequences.getPulseWidth(root));
+		origins.put(nRoot, new Origin(root, ReplayLog.COMPARE, -1));
+		return nRoot;
+	}
+
 	/**
 	 * Randomly mutate a given input sequence. This will mutate exactly n input
 	 * values randomly.
@@ -298,6 +547,7 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 				n = n - 1;
 			}
 		}
+		origins.put(nRoot, new Origin(root, ReplayLog.POINT, -1));
 		return nRoot;
 	}
 
@@ -324,13 +574,35 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
 
 	}
 
+	private final static class Origin {
+		public final TinyBoyInputSequence parent;
+		public final byte operator;
+		public final int macro;
+
+		public Origin(TinyBoyInputSequence parent, byte operator, int macro) {
+			this.parent = parent;
+			this.operator = operator;
+			this.macro = macro;
+		}
+	}
+
 	private final static class Pair {
 		public final TinyBoyInputSequence input;
 		public final BitSet output;
-
-		public Pair(TinyBoyInputSequence input, BitSet output) {
+		/**
+		 * The pulse at which the closest comparison occurred, or -1 if unknown.
+		 */
+		public final int target;
+		/**
+		 * The button tested by the closest comparison, or null if none.
+		 */
+		public final ControlPad.Button button;
+
+		public Pair(TinyBoyInputSequence input, BitSet output, int target, ControlPad.Button button) {
 			this.input = input;
 			this.output = output;
+			this.target = target;
+			this.button = button;
 		}
 	}
 }
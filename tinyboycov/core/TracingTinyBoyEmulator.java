@@ -0,0 +1,371 @@
+package tinyboycov.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javr.core.AVR;
+import javr.core.AvrDecoder;
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import javr.memory.ElasticByteMemory;
+import tinyboy.core.ControlPad;
+import tinyboy.core.TinyBoyEmulator;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * A TinyBoy emulator which traces the operands of comparisons guarding
+ * conditional branches. Many branches in the games compare a value loaded from
+ * the control pad (or from game state) against a constant, and coverage alone
+ * gives no indication of how close an input came to flipping them. Therefore,
+ * whenever a run of <code>CP</code>/<code>CPI</code> and <code>CPC</code>
+ * immediately preceding a conditional branch (or a <code>CPSE</code>,
+ * <code>SBRC</code>, <code>SBRS</code>, <code>SBIC</code> or <code>SBIS</code>)
+ * is about to execute, the distance between its operands is logged along with
+ * the current cycle. A run is treated as a single multi-byte comparison, since
+ * its instructions never modify their operands. Only comparisons guarding
+ * branches which are not yet covered are traced. The log is a fixed-size ring
+ * buffer of primitives, which is cleared on every reset, so only the most
+ * recent comparisons of the last execution are retained.
+ */
+public class TracingTinyBoyEmulator extends TinyBoyEmulator {
+	/**
+	 * The number of comparisons retained in the ring buffer.
+	 */
+	private static final int CAPACITY = 4096;
+	/**
+	 * The distance given to every bit test. A bit test is always exactly one flip
+	 * away from going the other way, which says nothing about how close an input
+	 * came to flipping it. Hence, bit tests are ranked as though their operands
+	 * were this far apart, such that close byte comparisons are preferred.
+	 */
+	private static final int BIT_DISTANCE = 16;
+	/**
+	 * The largest distance which can be logged, such that it fits alongside the
+	 * address of its comparison.
+	 */
+	private static final int MAX_DISTANCE = 0xFFFF;
+	/**
+	 * The most bytes of a multi-byte comparison considered (starting from the most
+	 * significant).
+	 */
+	private static final int MAX_BYTES = 4;
+	/**
+	 * The data address of the I/O register from which the control pad is read
+	 * (i.e. <code>PINB</code>).
+	 */
+	private static final int PINB = 0x20 + 0x16;
+	/**
+	 * The buttons wired to each pin of <code>PINB</code> (or <code>null</code> if
+	 * none), as wired by the TinyBoy emulator.
+	 */
+	private static final ControlPad.Button[] PINB_BUTTONS = { null, ControlPad.Button.UP, null,
+			ControlPad.Button.DOWN, ControlPad.Button.LEFT, ControlPad.Button.RIGHT, null, null };
+
+	// Kinds of comparison
+	private static final byte NONE = 0;
+	private static final byte REGISTER = 1; // CP, CPC or CPSE
+	private static final byte IMMEDIATE = 2; // CPI
+	private static final byte BIT = 3; // SBRC, SBRS, SBIC or SBIS
+
+	/**
+	 * The firmware currently uploaded, which determines the comparison sites.
+	 */
+	private HexFile firmware;
+	/**
+	 * Coverage of the current firmware, used to determine which branches remain
+	 * uncovered.
+	 */
+	private CoverageAnalysis coverage;
+	/**
+	 * Identifies the kind of comparison (if any) at each instruction address.
+	 */
+	private byte[] kinds = new byte[0];
+	/**
+	 * The number of instructions making up the comparison starting at each
+	 * address (or zero if none starts there). This is more than one only for a
+	 * multi-byte comparison.
+	 */
+	private byte[] lengths = new byte[0];
+	/**
+	 * The first operand of each comparison (the data address of a register or I/O
+	 * register).
+	 */
+	private int[] lhs = new int[0];
+	/**
+	 * The second operand of each comparison (a register, immediate or bit).
+	 */
+	private int[] rhs = new int[0];
+	/**
+	 * The address of the conditional branch guarded by each comparison (or -1 if
+	 * none).
+	 */
+	private int[] branches = new int[0];
+
+	// The ring buffer, where each comparison is packed as address (16 bits) and
+	// distance (16 bits), alongside the cycle it occurred.
+	private final int[] ring = new int[CAPACITY];
+	private final int[] ringCycles = new int[CAPACITY];
+	private int head;
+	private int cycle;
+
+	@Override
+	public void upload(HexFile firmware) {
+		super.upload(firmware);
+		if (firmware != this.firmware) {
+			// NOTE: the tester uploads the firmware before every execution
+			this.firmware = firmware;
+			analyse(firmware);
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		head = 0;
+		cycle = 0;
+	}
+
+	@Override
+	public void clock() {
+		int pc = getAVR().getRegisters().getPC();
+		if (pc < lengths.length && lengths[pc] != 0 && kinds[pc] != NONE) {
+			trace(pc);
+		}
+		super.clock();
+		cycle++;
+	}
+
+	/**
+	 * Record the coverage obtained by an execution. Comparisons guarding branches
+	 * which are now covered are no longer of interest and, hence, are no longer
+	 * traced. This stops them from crowding out the rest of the ring buffer.
+	 *
+	 * @param output
+	 */
+	public void record(BitSet output) {
+		if (coverage != null) {
+			coverage.record(output);
+			for (int i = 0; i != kinds.length; ++i) {
+				if (kinds[i] != NONE && coverage.isConditionalBranchCovered(branches[i])) {
+					kinds[i] = NONE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of comparisons retained from the last execution.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return Math.min(head, CAPACITY);
+	}
+
+	/**
+	 * Get the address of the conditional branch guarded by the comparison at a
+	 * given address.
+	 *
+	 * @param address
+	 *            An instruction address in the current firmware.
+	 * @return The address of the guarded branch, or <code>-1</code> if there is
+	 *         no traced comparison at the given address.
+	 */
+	public int getGuardedBranch(int address) {
+		if (address < kinds.length && kinds[address] != NONE) {
+			return branches[address];
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the comparison from the last execution which came closest to flipping
+	 * a branch that is still uncovered. Comparisons with equal operands are
+	 * ignored, since they give no indication of which way to go.
+	 *
+	 * @return The cycle at which the comparison occurred, or <code>-1</code> if
+	 *         none was found.
+	 */
+	public int getClosestCycle() {
+		int slot = closest();
+		return slot < 0 ? -1 : ringCycles[slot];
+	}
+
+	/**
+	 * Determine the control pad button tested by the comparison from the last
+	 * execution which came closest to flipping a branch that is still uncovered.
+	 *
+	 * @return The button tested, or <code>null</code> if the closest comparison
+	 *         does not test a button (or there is none).
+	 */
+	public ControlPad.Button getClosestButton() {
+		int slot = closest();
+		if (slot < 0) {
+			return null;
+		}
+		int address = ring[slot] >>> 16;
+		if (kinds[address] == BIT && lhs[address] == PINB) {
+			return PINB_BUTTONS[rhs[address]];
+		}
+		return null;
+	}
+
+	/**
+	 * Find the slot in the ring buffer of the closest comparison guarding an
+	 * uncovered branch.
+	 *
+	 * @return The slot, or <code>-1</code> if none was found.
+	 */
+	private int closest() {
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = head - size(); i < head; ++i) {
+			int entry = ring[i % CAPACITY];
+			int address = entry >>> 16;
+			int distance = entry & MAX_DISTANCE;
+			if (distance > 0 && distance <= bestDistance && !coverage.isConditionalBranchCovered(branches[address])) {
+				// NOTE: later comparisons are preferred on ties
+				best = i % CAPACITY;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	private void trace(int pc) {
+		int slot = head++ % CAPACITY;
+		ring[slot] = (pc << 16) | distance(pc);
+		ringCycles[slot] = cycle;
+		if (head == Integer.MAX_VALUE) {
+			head = CAPACITY + (head % CAPACITY);
+		}
+	}
+
+	/**
+	 * Determine how far apart the operands of the comparison starting at a given
+	 * address are. For a multi-byte comparison, the bytes are combined (least
+	 * significant first) before taking the difference.
+	 *
+	 * @param address
+	 * @return
+	 */
+	private int distance(int address) {
+		if (kinds[address] == BIT) {
+			return BIT_DISTANCE;
+		}
+		AVR.Memory data = getAVR().getData();
+		int end = address + lengths[address];
+		long a = 0;
+		long b = 0;
+		for (int i = end - 1; i >= Math.max(address, end - MAX_BYTES); --i) {
+			a = (a << 8) | (data.peek(lhs[i]) & 0xFF);
+			if (kinds[i] == REGISTER) {
+				b = (b << 8) | (data.peek(rhs[i]) & 0xFF);
+			} else {
+				b = (b << 8) | (rhs[i] & 0xFF);
+			}
+		}
+		return (int) Math.min(Math.abs(a - b), MAX_DISTANCE);
+	}
+
+	/**
+	 * Identify every comparison site in a given firmware.
+	 *
+	 * @param firmware
+	 */
+	private void analyse(HexFile firmware) {
+		coverage = new CoverageAnalysis(firmware);
+		ElasticByteMemory code = new ElasticByteMemory();
+		firmware.uploadTo(code);
+		AvrDecoder decoder = new AvrDecoder();
+		int size = code.size() / 2;
+		kinds = new byte[size];
+		lengths = new byte[size];
+		lhs = new int[size];
+		rhs = new int[size];
+		branches = new int[size];
+		Arrays.fill(branches, -1);
+		// The start of the current run of comparisons (e.g. a CPI followed by a CPC
+		// for a 16-bit comparison), or -1 if not in such a run.
+		int chain = -1;
+		for (int i = 0; i < size;) {
+			if (!coverage.isReachableInstruction(i)) {
+				chain = -1;
+				i = i + 1;
+				continue;
+			}
+			AvrInstruction insn = decoder.decode(code, i);
+			int next = i + insn.getWidth();
+			if (insn instanceof AvrInstruction.CP) {
+				// This starts a new comparison
+				AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+				chain = i;
+				site(i, REGISTER, rr.Rd, rr.Rr);
+			} else if (insn instanceof AvrInstruction.CPI) {
+				// This starts a new comparison
+				AvrInstruction.CPI ri = (AvrInstruction.CPI) insn;
+				chain = i;
+				site(i, IMMEDIATE, ri.Rd, ri.K);
+			} else if (insn instanceof AvrInstruction.CPC) {
+				// This continues the current comparison with the next byte up
+				AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+				chain = chain < 0 ? i : chain;
+				site(i, REGISTER, rr.Rd, rr.Rr);
+			} else if (insn instanceof AvrInstruction.CPSE) {
+				// This is a conditional branch itself
+				AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+				site(i, REGISTER, rr.Rd, rr.Rr);
+				guard(i, next, i);
+				chain = -1;
+			} else if (insn instanceof AvrInstruction.SBRC || insn instanceof AvrInstruction.SBRS) {
+				// This is a conditional branch itself
+				AvrInstruction.RegisterBit rb = (AvrInstruction.RegisterBit) insn;
+				site(i, BIT, rb.Rd, rb.b);
+				guard(i, next, i);
+				chain = -1;
+			} else if (insn instanceof AvrInstruction.SBIC || insn instanceof AvrInstruction.SBIS) {
+				// This is a conditional branch itself, which may test the control pad
+				AvrInstruction.IoBit ib = (AvrInstruction.IoBit) insn;
+				site(i, BIT, 0x20 + ib.A, ib.b);
+				guard(i, next, i);
+				chain = -1;
+			} else {
+				chain = -1;
+			}
+			if (chain >= 0 && coverage.isConditionalBranch(next)) {
+				// The whole run is one comparison guarding this branch
+				guard(chain, next, next);
+				chain = -1;
+			}
+			i = next;
+		}
+		// Discard comparisons which don't guard any branch
+		for (int i = 0; i != size; ++i) {
+			if (branches[i] < 0) {
+				kinds[i] = NONE;
+			}
+		}
+	}
+
+	private void site(int address, byte kind, int a, int b) {
+		kinds[address] = kind;
+		lhs[address] = a;
+		rhs[address] = b;
+	}
+
+	/**
+	 * Record that the comparison made up of the instructions from a given start
+	 * address (inclusive) to a given end address (exclusive) guards a given
+	 * branch.
+	 *
+	 * @param start
+	 * @param end
+	 * @param branch
+	 */
+	private void guard(int start, int end, int branch) {
+		lengths[start] = (byte) (end - start);
+		for (int j = start; j < end; ++j) {
+			branches[j] = branch;
+		}
+	}
+}
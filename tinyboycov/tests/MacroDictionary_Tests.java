@@ -0,0 +1,83 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import tinyboycov.core.MacroDictionary;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MacroDictionary_Tests {
+  /**
+   * The only n-gram (of at least three pulses) occurring twice is "123".
+   */
+  private static final byte[] MOTIF = { 1, 2, 3, 0, 1, 2, 3 };
+
+  @Test
+  public void test_01_mine_motif() {
+    MacroDictionary macros = new MacroDictionary();
+    assertTrue(macros.isEmpty());
+    macros.mine(MOTIF, MOTIF.length);
+    assertFalse(macros.isEmpty());
+    int macro = macros.select(new SplittableRandom(1));
+    assertArrayEquals(new byte[] { 1, 2, 3 }, macros.getPulses(macro));
+  }
+
+  @Test
+  public void test_02_insert_truncates() {
+    MacroDictionary macros = new MacroDictionary();
+    macros.mine(MOTIF, MOTIF.length);
+    int macro = macros.select(new SplittableRandom(1));
+    byte[] pulses = { 4, 4, 4, 4, 5 };
+    assertArrayEquals(new byte[] { 4, 1, 2, 3, 4 }, macros.insert(pulses, macro, 1));
+    assertArrayEquals(new byte[] { 4, 4, 4, 4, 5 }, pulses);
+  }
+
+  @Test
+  public void test_03_overwrite_clips() {
+    MacroDictionary macros = new MacroDictionary();
+    macros.mine(MOTIF, MOTIF.length);
+    int macro = macros.select(new SplittableRandom(1));
+    byte[] pulses = { 4, 4, 4, 4, 5 };
+    assertArrayEquals(new byte[] { 4, 4, 4, 1, 2 }, macros.overwrite(pulses, macro, 3));
+  }
+
+  @Test
+  public void test_04_decay_makes_room() {
+    MacroDictionary macros = new MacroDictionary();
+    SplittableRandom random = new SplittableRandom(2);
+    byte[] noise = new byte[1000];
+    for (int i = 0; i != 10; ++i) {
+      for (int j = 0; j != noise.length; ++j) {
+        noise[j] = (byte) random.nextInt(5);
+      }
+      macros.mine(noise, noise.length);
+    }
+    // Long enough that it can only be selected if it was added after decay
+    byte[] motif = new byte[48];
+    for (int j = 0; j != motif.length; ++j) {
+      motif[j] = (byte) (1 + (j % 24) % 4);
+    }
+    macros.mine(motif, motif.length);
+    macros.mine(motif, motif.length);
+    boolean found = false;
+    for (int i = 0; i != 1000 && !found; ++i) {
+      found = macros.getPulses(macros.select(random)).length == 24;
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void test_05_mine_executed_prefix() {
+    MacroDictionary macros = new MacroDictionary();
+    // The second occurrence of the motif was never executed
+    macros.mine(MOTIF, 4);
+    assertTrue(macros.isEmpty());
+  }
+}
@@ -0,0 +1,40 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboycov.core.InputSequences;
+import tinyboycov.core.ReplayLog;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ReplayLog_Tests {
+
+  @Test
+  public void test_01_round_trip() throws IOException {
+    TinyBoyInputSequence parent = InputSequences.parse("UDLR_", 8_000);
+    TinyBoyInputSequence child = InputSequences.parse("UDLRR_U", 8_000);
+    File file = File.createTempFile("replay", ".log");
+    file.deleteOnExit();
+    try (ReplayLog.Writer log = new ReplayLog.Writer(file)) {
+      log.write(parent, null, ReplayLog.SEED, 10);
+      log.write(child, parent, ReplayLog.MACRO_INSERT, 0);
+    }
+    List<ReplayLog.Entry> entries = ReplayLog.read(file);
+    assertEquals(2, entries.size());
+    assertEquals(0, entries.get(0).parent);
+    assertEquals(10, entries.get(0).delta);
+    assertEquals(ReplayLog.hash(parent), entries.get(1).parent);
+    assertEquals(ReplayLog.hash(child), entries.get(1).candidate);
+    assertEquals(ReplayLog.MACRO_INSERT, entries.get(1).operator);
+    assertEquals(child.toString(), entries.get(1).toInputSequence().toString());
+    assertEquals(8_000, entries.get(1).pulseLength);
+  }
+}
@@ -0,0 +1,61 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import tinyboycov.util.Statistics;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Statistics_Tests {
+
+  @Test
+  public void test_01_median() {
+    assertEquals(3.0, Statistics.median(new double[] { 5, 1, 3 }), 0.0);
+    assertEquals(2.5, Statistics.median(new double[] { 4, 1, 3, 2 }), 0.0);
+    assertEquals(Double.POSITIVE_INFINITY,
+        Statistics.median(new double[] { 1, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY }), 0.0);
+  }
+
+  @Test
+  public void test_02_median_interval() {
+    double[] sample = new double[20];
+    for (int i = 0; i != sample.length; ++i) {
+      sample[i] = i + 1;
+    }
+    double[] ci = Statistics.medianConfidenceInterval(sample);
+    assertEquals(5.0, ci[0], 0.0);
+    assertEquals(16.0, ci[1], 0.0);
+  }
+
+  @Test
+  public void test_03_mann_whitney_identical() {
+    double[] xs = { 1, 2, 3, 4, 5 };
+    assertEquals(12.5, Statistics.mannWhitneyU(xs, xs), 0.0);
+    assertTrue(Statistics.mannWhitneyP(xs, xs) > 0.99);
+  }
+
+  @Test
+  public void test_04_mann_whitney_separated() {
+    double[] xs = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    double[] ys = { 11, 12, 13, 14, 15, 16, 17, 18, 19, Double.POSITIVE_INFINITY };
+    assertEquals(0.0, Statistics.mannWhitneyU(xs, ys), 0.0);
+    // Exact two-sided p-value is 1.08e-5, which the normal approximation
+    // slightly overestimates.
+    assertTrue(Statistics.mannWhitneyP(xs, ys) < 0.001);
+  }
+
+  @Test
+  public void test_05_mann_whitney_mostly_unreached() {
+    double inf = Double.POSITIVE_INFINITY;
+    double[] xs = { 10, 12, 14, 16, 18, inf, inf, inf, inf, inf };
+    double[] ys = { inf, inf, inf, inf, inf, inf, inf, inf, inf, inf };
+    // Both medians are unreached, but U is below its mean (50) since xs ranks
+    // lower.
+    assertEquals(25.0, Statistics.mannWhitneyU(xs, ys), 0.0);
+    assertTrue(Statistics.mannWhitneyP(xs, ys) < 0.05);
+  }
+}
@@ -7,18 +7,17 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.BitSet;
 
-import javr.core.AVR;
-import javr.core.AvrDecoder;
-import javr.core.AvrInstruction;
 import javr.io.HexFile;
 import javrsim.peripherals.JPeripheral;
-import tinyboy.core.ControlPad;
 import tinyboy.core.TinyBoyEmulator;
 import tinyboy.core.TinyBoyInputSequence;
 import tinyboy.util.AutomatedTester;
 import tinyboy.util.CoverageAnalysis;
 import tinyboy.views.TinyBoyPeripheral;
+import tinyboycov.core.InputSequences;
 import tinyboycov.core.TinyBoyInputGenerator;
+import tinyboycov.core.TracingTinyBoyEmulator;
+import tinyboycov.util.CoverageReporter;
 
 /**
  * Test utilities for the assignment
@@ -42,6 +41,12 @@ public class TestUtils {
    * ONE second worth of cycles running at 8MHz.
    */
   private static final int ONE_SECOND = 8_000_000;
+  /**
+   * Optional reporter which writes coverage reports for every firmware tested.
+   * This is enabled by setting the <code>tinyboycov.reports</code> property to
+   * the directory the reports should be written into.
+   */
+  private static final CoverageReporter REPORTER = createReporter();
 
   /**
    * Check the coverage for a given firmware file using a single input sequence of
@@ -61,6 +66,7 @@ public class TestUtils {
     TinyBoyEmulator tinyBoy = createTinyBoy();
     // Compute the coverage info
     CoverageAnalysis coverage = computeManualCoverage(tinyBoy, filename, input);
+    report(filename, coverage);
     if (coverage.getBranchCoverage() < COVERAGE_TARGET) {
       // Indicates a fail
       System.out.println("===============================================");
@@ -70,7 +76,10 @@ public class TestUtils {
       printDisassembly(tinyBoy, coverage);
       fail("Branch coverage failed to meet target of " + COVERAGE_TARGET + "%" + Math.round(coverage.getBranchCoverage())  + "% I: " + Math.round(coverage.getInstructionCoverage())  + "%");
     } else {
-      printDisassembly(tinyBoy, coverage);
+      if (REPORTER == null) {
+        // Otherwise, the disassembly is already in the report
+        printDisassembly(tinyBoy, coverage);
+      }
       System.out.println("BRANCH COVERAGE: " + coverage.getBranchCoverage());
     }
   }
@@ -80,6 +89,7 @@ public class TestUtils {
     TinyBoyEmulator tinyBoy = createTinyBoy();
     // Compute the coverage for the given firmware image
     CoverageAnalysis coverage = computeFuzzCoverage(tinyBoy, filename);
+    report(filename, coverage);
     // Check wether the target was reached.
     if (coverage.getBranchCoverage() < COVERAGE_TARGET) {
       // Indicates a fail
@@ -90,18 +100,57 @@ public class TestUtils {
       printDisassembly(tinyBoy, coverage);
       fail("Branch coverage failed to meet target of " + COVERAGE_TARGET + "% B: " + Math.round(coverage.getBranchCoverage())  + "% I: " + Math.round(coverage.getInstructionCoverage())  + "%");
     } else {
-      printDisassembly(tinyBoy, coverage);
+      if (REPORTER == null) {
+        // Otherwise, the disassembly is already in the report
+        printDisassembly(tinyBoy, coverage);
+      }
       System.out.println("BRANCH COVERAGE: " + coverage.getBranchCoverage());
     }
   }
 
+  /**
+   * Submit the coverage obtained for a given firmware to the reporter, if there
+   * is one.
+   *
+   * @param filename
+   * @param coverage
+   * @throws IOException
+   */
+  private static void report(String filename, CoverageAnalysis coverage) throws IOException {
+    if (REPORTER != null) {
+      HexFile firmware = new HexFile.Reader(new FileReader(TESTS_DIR + filename)).readAll();
+      REPORTER.submit(filename.replace(".hex", ""), firmware, coverage);
+    }
+  }
+
+  /**
+   * Create the coverage reporter, if one was requested.
+   *
+   * @return
+   */
+  private static CoverageReporter createReporter() {
+    String dir = System.getProperty("tinyboycov.reports");
+    if (dir == null) {
+      return null;
+    }
+    CoverageReporter reporter = new CoverageReporter(new File(dir));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        reporter.close();
+      } catch (IOException e) {
+        // Nothing more can be done
+      }
+    }));
+    return reporter;
+  }
+
   /**
    * Create a TinyBoy emulator which has a graphical display.
    *
    * @return
    */
   private static TinyBoyEmulator createTinyBoy() {
-    return new TinyBoyEmulator() {
+    return new TracingTinyBoyEmulator() {
       // This is a little ugly!!
       JPeripheral view = new TinyBoyPeripheral(this);
 
@@ -122,29 +171,7 @@ public class TestUtils {
    * @returncomputeFuzzCoverage
    */
   public static TinyBoyInputSequence createInputSequence(String input, int pulseLength) {
-    TinyBoyInputSequence tbi = new TinyBoyInputSequence(input.length(), pulseLength);
-    for (int i = 0; i != input.length(); ++i) {
-      switch (input.charAt(i)) {
-      case 'U':
-        tbi.setPulse(i, ControlPad.Button.UP);
-        break;
-      case 'D':
-        tbi.setPulse(i, ControlPad.Button.DOWN);
-        break;
-      case 'L':
-        tbi.setPulse(i, ControlPad.Button.LEFT);
-        break;
-      case 'R':
-        tbi.setPulse(i, ControlPad.Button.RIGHT);
-        break;
-      case '_':
-        tbi.setPulse(i, null);
-        break;
-      default:
-        throw new IllegalArgumentException("Invalid input sequence: " + input);
-      }
-    }
-    return tbi;
+    return InputSequences.parse(input, pulseLength);
   }
 
   /**
@@ -177,7 +204,11 @@ public class TestUtils {
    */
   public static CoverageAnalysis computeFuzzCoverage(TinyBoyEmulator tinyBoy, String filename) throws IOException {
     // Construct the input generator
-    AutomatedTester.InputGenerator<?> generator = new TinyBoyInputGenerator();
+    TinyBoyInputGenerator generator = new TinyBoyInputGenerator();
+    generator.setCycles(ONE_SECOND);
+    if (tinyBoy instanceof TracingTinyBoyEmulator) {
+      generator.setTracer((TracingTinyBoyEmulator) tinyBoy);
+    }
     // Run the tests
     return computeCoverage(tinyBoy, filename, ONE_SECOND, generator);
   }
@@ -244,48 +275,7 @@ public class TestUtils {
    * @return
    */
   public static void printDisassembly(TinyBoyEmulator tinyBoy, CoverageAnalysis coverage) {
-    AvrDecoder decoder = new AvrDecoder();
-    AVR.Memory code = tinyBoy.getAVR().getCode();
-    int size = code.size() / 2;
-    boolean ignoring = false;
-    int instructions = 0;
-    int coveredInstructions = 0;
-    int branches = 0;
-    int coveredBranches = 0;
-    for (int i = 0; i != size;) {
-      if (coverage.isReachableInstruction(i)) {
-        AvrInstruction insn = decoder.decode(code, i);
-        System.out.print(String.format("%04X", i));
-        instructions++;
-        if (coverage.wasCovered(i)) {
-          System.out.print(" [*] ");
-          coveredInstructions++;
-        } else {
-          System.out.print(" [ ] ");
-        }
-        System.out.print(insn.toString());
-        if (coverage.isConditionalBranchCovered(i)) {
-          System.out.println("\t<<<<<<<<<<<<<<<<<<<< (" + branches++ + ")");
-          coveredBranches++;
-        } else if (coverage.isConditionalBranch(i)) {
-          System.out.println("\t<<<<<<<<<<<<<<<<<<<< UNCOVERED (" + branches++ + ")");
-        } else {
-          System.out.println();
-        }
-        i = i + insn.getWidth();
-        ignoring = false;
-      } else {
-        if (!ignoring) {
-          System.out.println(" ... ");
-          ignoring = true;
-        }
-        i = i + 1;
-      }
-    }
-    System.out.println("Instruction Coverage = " + coveredInstructions + " / " + instructions + "(" + code.size() + ")"
-        + "(" + ((double) coveredInstructions / (double) instructions) + ")");
-    System.out.println("Branch Coverage = " + coveredBranches + " / " + branches + "("
-        + ((double) coveredBranches / (double) branches) + ")");
+    System.out.print(CoverageReporter.renderDisassembly(tinyBoy.getAVR().getCode(), coverage));
   }
 
 }
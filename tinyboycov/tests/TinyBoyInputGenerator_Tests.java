@@ -0,0 +1,48 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboycov.core.InputSequences;
+import tinyboycov.core.TinyBoyInputGenerator;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TinyBoyInputGenerator_Tests {
+
+  @Test
+  public void test_01_same_seed_same_inputs() {
+    TinyBoyInputGenerator first = new TinyBoyInputGenerator(42);
+    TinyBoyInputGenerator second = new TinyBoyInputGenerator(42);
+    for (int i = 0; i != 100; ++i) {
+      TinyBoyInputSequence a = first.generate();
+      TinyBoyInputSequence b = second.generate();
+      assertEquals(a.toString(), b.toString());
+      assertEquals(InputSequences.getPulseWidth(a), InputSequences.getPulseWidth(b));
+      BitSet output = fakeCoverage(a);
+      first.record(a, output);
+      second.record(b, (BitSet) output.clone());
+    }
+  }
+
+  /**
+   * Fake the coverage of an input, such that different inputs cover different
+   * (though overlapping) addresses.
+   *
+   * @param input
+   * @return
+   */
+  private static BitSet fakeCoverage(TinyBoyInputSequence input) {
+    byte[] pulses = InputSequences.encode(input);
+    BitSet output = new BitSet();
+    for (int i = 0; i != pulses.length; ++i) {
+      output.set(((i % 32) * InputSequences.NUM_SYMBOLS + pulses[i]) * 2);
+    }
+    return output;
+  }
+}
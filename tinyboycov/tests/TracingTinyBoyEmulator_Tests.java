@@ -0,0 +1,116 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import javr.io.HexFile;
+import tinyboy.core.ControlPad;
+import tinyboycov.core.TracingTinyBoyEmulator;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TracingTinyBoyEmulator_Tests {
+  /**
+   * A small firmware exercising every kind of comparison site.
+   */
+  private static final int[] PROGRAM = {
+      0xE084, // 0: LDI r24, 4
+      0x3085, // 1: CPI r24, 5
+      0x0591, // 2: CPC r25, r1
+      0xF401, // 3: BRNE +0
+      0x1389, // 4: CPSE r24, r25
+      0x0000, // 5: NOP
+      0xFD83, // 6: SBRC r24, 3
+      0x0000, // 7: NOP
+      0x9BB5, // 8: SBIS PINB, 5
+      0x0000, // 9: NOP
+      0xCFFF, // 10: RJMP -1
+  };
+
+  /**
+   * A 16-bit comparison whose high bytes are one apart, though the values are
+   * 256 apart.
+   */
+  private static final int[] WIDE_PROGRAM = {
+      0xE092, // 0: LDI r25, 2
+      0xE0B1, // 1: LDI r27, 1
+      0x178A, // 2: CP r24, r26
+      0x079B, // 3: CPC r25, r27
+      0xF401, // 4: BRNE +0
+      0xE0C4, // 5: LDI r28, 4
+      0x138C, // 6: CPSE r24, r28
+      0x0000, // 7: NOP
+      0xCFFF, // 8: RJMP -1
+  };
+
+  /**
+   * A firmware which waits for the RIGHT button.
+   */
+  private static final int[] BUTTON_PROGRAM = {
+      0x9BB5, // 0: SBIS PINB, 5
+      0xCFFE, // 1: RJMP -2
+      0xCFFF, // 2: RJMP -1
+  };
+
+  @Test
+  public void test_01_guarded_branches() {
+    TracingTinyBoyEmulator tinyBoy = new TracingTinyBoyEmulator();
+    tinyBoy.upload(createFirmware(PROGRAM));
+    // A 16-bit comparison guards the following branch
+    assertEquals(3, tinyBoy.getGuardedBranch(1));
+    assertEquals(3, tinyBoy.getGuardedBranch(2));
+    // These guard themselves
+    assertEquals(4, tinyBoy.getGuardedBranch(4));
+    assertEquals(6, tinyBoy.getGuardedBranch(6));
+    assertEquals(8, tinyBoy.getGuardedBranch(8));
+    // Everything else is not a comparison
+    assertEquals(-1, tinyBoy.getGuardedBranch(0));
+    assertEquals(-1, tinyBoy.getGuardedBranch(3));
+    assertEquals(-1, tinyBoy.getGuardedBranch(10));
+  }
+
+  @Test
+  public void test_02_closest_prefers_bytes() {
+    TracingTinyBoyEmulator tinyBoy = run(PROGRAM, 12);
+    // The CPI/CPC (one apart) beats the CPSE (four apart) and the later bit tests
+    assertEquals(4, tinyBoy.size());
+    assertEquals(1, tinyBoy.getClosestCycle());
+    assertNull(tinyBoy.getClosestButton());
+  }
+
+  @Test
+  public void test_03_closest_multi_byte() {
+    TracingTinyBoyEmulator tinyBoy = run(WIDE_PROGRAM, 10);
+    // The CPSE (four apart) beats the 16-bit comparison (256 apart)
+    assertEquals(2, tinyBoy.size());
+    assertEquals(6, tinyBoy.getClosestCycle());
+  }
+
+  @Test
+  public void test_04_closest_button() {
+    TracingTinyBoyEmulator tinyBoy = run(BUTTON_PROGRAM, 10);
+    assertEquals(ControlPad.Button.RIGHT, tinyBoy.getClosestButton());
+  }
+
+  private static TracingTinyBoyEmulator run(int[] program, int cycles) {
+    TracingTinyBoyEmulator tinyBoy = new TracingTinyBoyEmulator();
+    tinyBoy.upload(createFirmware(program));
+    tinyBoy.reset();
+    for (int i = 0; i != cycles; ++i) {
+      tinyBoy.clock();
+    }
+    return tinyBoy;
+  }
+
+  private static HexFile createFirmware(int[] program) {
+    byte[] bytes = new byte[program.length * 2];
+    for (int i = 0; i != program.length; ++i) {
+      bytes[i * 2] = (byte) program[i];
+      bytes[i * 2 + 1] = (byte) (program[i] >>> 8);
+    }
+    return HexFile.toHexFile(bytes, 16);
+  }
+}
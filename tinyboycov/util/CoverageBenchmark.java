@@ -0,0 +1,309 @@
+package tinyboycov.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+import javr.io.HexFile;
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboy.util.AutomatedTester;
+import tinyboycov.core.TinyBoyInputGenerator;
+import tinyboycov.core.TracingTinyBoyEmulator;
+
+/**
+ * A campaign-level benchmark for input generators. This runs a given generator
+ * configuration over a set of firmwares for many seeds, and records the
+ * executions, emulated cycles and wall time needed to reach each coverage
+ * milestone. The results are summarised by their medians (with 95% confidence
+ * intervals) and, when a saved baseline is available, compared against it using
+ * the Mann-Whitney U test. This gives a proper answer to whether a change to the
+ * generator actually makes it faster, rather than relying on a single seed.
+ *
+ * Results (and baselines) are stored as CSV with one row per campaign and
+ * milestone, where a milestone which was not reached is written as
+ * <code>inf</code>.
+ */
+public class CoverageBenchmark {
+  /**
+   * The names of the metrics recorded for each milestone.
+   */
+  public static final String[] METRICS = { "executions", "cycles", "millis" };
+  /**
+   * The significance level used when comparing against a baseline.
+   */
+  private static final double ALPHA = 0.05;
+
+  private static final String USAGE = "usage: CoverageBenchmark [-seeds N] [-seed S] [-executions N] [-baseline FILE]"
+      + " [-save FILE] [firmware.hex ...]";
+
+  private final LongFunction<AutomatedTester.InputGenerator<TinyBoyInputSequence>> configuration;
+  private final int maxExecutions;
+  /**
+   * Maps each firmware, milestone and metric (in that order) to the values
+   * observed across all seeds.
+   */
+  private final Map<String, double[][][]> results = new LinkedHashMap<>();
+
+  /**
+   * Construct a benchmark for a given generator configuration.
+   *
+   * @param configuration
+   *          Constructs a generator for a given seed.
+   * @param maxExecutions
+   *          The maximum number of inputs executed in any one campaign.
+   */
+  public CoverageBenchmark(LongFunction<AutomatedTester.InputGenerator<TinyBoyInputSequence>> configuration,
+      int maxExecutions) {
+    this.configuration = configuration;
+    this.maxExecutions = maxExecutions;
+  }
+
+  /**
+   * Run one campaign per seed on a given firmware, recording the effort needed to
+   * reach each milestone.
+   *
+   * @param firmware
+   *          The firmware file to test.
+   * @param seeds
+   *          The seeds to run.
+   * @throws IOException
+   */
+  public void run(File firmware, long[] seeds) throws IOException {
+    HexFile hf = new HexFile.Reader(new FileReader(firmware)).readAll();
+    double[][][] values = new double[FuzzCampaign.MILESTONES.length][METRICS.length][seeds.length];
+    for (int s = 0; s != seeds.length; ++s) {
+      TracingTinyBoyEmulator tinyBoy = new TracingTinyBoyEmulator();
+      AutomatedTester.InputGenerator<TinyBoyInputSequence> generator = configuration.apply(seeds[s]);
+      if (generator instanceof TinyBoyInputGenerator) {
+        ((TinyBoyInputGenerator) generator).setTracer(tinyBoy);
+        ((TinyBoyInputGenerator) generator).setCycles(FuzzCampaign.ONE_SECOND);
+      }
+      FuzzCampaign campaign = new FuzzCampaign(tinyBoy, hf, generator, FuzzCampaign.ONE_SECOND);
+      campaign.run(maxExecutions, Long.MAX_VALUE, FuzzCampaign.MILESTONES[FuzzCampaign.MILESTONES.length - 1]);
+      for (int m = 0; m != FuzzCampaign.MILESTONES.length; ++m) {
+        values[m][0][s] = unreached(campaign.getMilestoneExecutions(m));
+        values[m][1][s] = unreached(campaign.getMilestoneCycles(m));
+        values[m][2][s] = unreached(campaign.getMilestoneNanos(m)) / 1_000_000.0;
+      }
+    }
+    results.put(firmware.getName(), values);
+  }
+
+  /**
+   * Write a summary of the results, comparing against a given baseline (if
+   * any).
+   *
+   * @param out
+   * @param baseline
+   *          Results of a previous benchmark, or <code>null</code>.
+   */
+  public void report(PrintWriter out, Map<String, double[][][]> baseline) {
+    for (Map.Entry<String, double[][][]> e : results.entrySet()) {
+      double[][][] base = baseline == null ? null : baseline.get(e.getKey());
+      out.println("===============================================");
+      out.println(e.getKey());
+      out.println("===============================================");
+      for (int m = 0; m != FuzzCampaign.MILESTONES.length; ++m) {
+        for (int k = 0; k != METRICS.length; ++k) {
+          double[] sample = e.getValue()[m][k];
+          double[] ci = Statistics.medianConfidenceInterval(sample);
+          String line = String.format("%3.0f%% %-10s median %s [%s, %s] (%d/%d reached)", FuzzCampaign.MILESTONES[m],
+              METRICS[k], format(Statistics.median(sample)), format(ci[0]), format(ci[1]), reached(sample),
+              sample.length);
+          if (base != null && m < base.length) {
+            double[] before = base[m][k];
+            double u = Statistics.mannWhitneyU(sample, before);
+            double p = Statistics.mannWhitneyP(sample, before);
+            // NOTE: medians are often both unreached, so the direction comes from U
+            // instead. Below its mean, the sample tends to rank below the baseline.
+            double mean = (double) sample.length * before.length / 2;
+            String verdict;
+            if (Double.isNaN(p)) {
+              // At least one of the samples is empty
+              verdict = "n/a";
+            } else {
+              verdict = p >= ALPHA ? "no significant change" : (u < mean ? "FASTER" : "SLOWER");
+            }
+            line += String.format(" vs baseline %s, U=%.1f, p=%.4f, %s", format(Statistics.median(before)), u, p,
+                verdict);
+          }
+          out.println(line);
+        }
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Save the raw results, such that they can be used as a baseline later.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.println("firmware,milestone,metric,run,value");
+      for (Map.Entry<String, double[][][]> e : results.entrySet()) {
+        double[][][] values = e.getValue();
+        for (int m = 0; m != values.length; ++m) {
+          for (int k = 0; k != METRICS.length; ++k) {
+            for (int r = 0; r != values[m][k].length; ++r) {
+              double v = values[m][k][r];
+              out.println(e.getKey() + "," + FuzzCampaign.MILESTONES[m] + "," + METRICS[k] + "," + r + ","
+                  + (Double.isInfinite(v) ? "inf" : Double.toString(v)));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Load results previously written by <code>save()</code>.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static Map<String, double[][][]> load(File file) throws IOException {
+    Map<String, List<Double>[][]> rows = new LinkedHashMap<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line = in.readLine(); // header
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(",");
+        if (fields.length != 5) {
+          throw new IOException("Invalid baseline row: " + line);
+        }
+        int m = Arrays.binarySearch(FuzzCampaign.MILESTONES, Double.parseDouble(fields[1]));
+        int k = Arrays.asList(METRICS).indexOf(fields[2]);
+        if (m < 0 || k < 0) {
+          throw new IOException("Invalid baseline row: " + line);
+        }
+        double v = fields[4].equals("inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(fields[4]);
+        rows.computeIfAbsent(fields[0], n -> newTable())[m][k].add(v);
+      }
+    }
+    Map<String, double[][][]> baseline = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Double>[][]> e : rows.entrySet()) {
+      List<Double>[][] table = e.getValue();
+      double[][][] values = new double[table.length][METRICS.length][];
+      for (int m = 0; m != table.length; ++m) {
+        for (int k = 0; k != METRICS.length; ++k) {
+          values[m][k] = table[m][k].stream().mapToDouble(Double::doubleValue).toArray();
+        }
+      }
+      baseline.put(e.getKey(), values);
+    }
+    return baseline;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static List<Double>[][] newTable() {
+    List<Double>[][] table = new List[FuzzCampaign.MILESTONES.length][METRICS.length];
+    for (List<Double>[] row : table) {
+      for (int k = 0; k != row.length; ++k) {
+        row[k] = new ArrayList<>();
+      }
+    }
+    return table;
+  }
+
+  private static double unreached(long value) {
+    return value < 0 ? Double.POSITIVE_INFINITY : value;
+  }
+
+  private static int reached(double[] sample) {
+    int count = 0;
+    for (double v : sample) {
+      count += Double.isInfinite(v) ? 0 : 1;
+    }
+    return count;
+  }
+
+  private static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "n/a";
+    } else if (Double.isInfinite(value)) {
+      return "inf";
+    } else {
+      return String.format("%.1f", value);
+    }
+  }
+
+  /**
+   * Run the benchmark from the command-line. By default, the standard generator
+   * is run for ten seeds over every firmware in the <code>tests/</code>
+   * directory.
+   *
+   * <pre>
+   * CoverageBenchmark [-seeds N] [-seed S] [-executions N] [-baseline FILE] [-save FILE] [firmware.hex ...]
+   * </pre>
+   *
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    int numSeeds = 10;
+    long firstSeed = 854269;
+    int executions = 200;
+    File baseline = null;
+    File save = null;
+    List<File> firmwares = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        switch (args[i]) {
+        case "-seeds":
+          numSeeds = Integer.parseInt(args[++i]);
+          break;
+        case "-seed":
+          firstSeed = Long.parseLong(args[++i]);
+          break;
+        case "-executions":
+          executions = Integer.parseInt(args[++i]);
+          break;
+        case "-baseline":
+          baseline = new File(args[++i]);
+          break;
+        case "-save":
+          save = new File(args[++i]);
+          break;
+        default:
+          if (args[i].startsWith("-")) {
+            throw new IllegalArgumentException(args[i]);
+          }
+          firmwares.add(new File(args[i]));
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    if (firmwares.isEmpty()) {
+      File[] files = new File("tests").listFiles((dir, name) -> name.endsWith(".hex"));
+      Arrays.sort(files);
+      firmwares.addAll(Arrays.asList(files));
+    }
+    long[] seeds = new long[numSeeds];
+    for (int i = 0; i != numSeeds; ++i) {
+      seeds[i] = firstSeed + i;
+    }
+    CoverageBenchmark benchmark = new CoverageBenchmark(TinyBoyInputGenerator::new, executions);
+    for (File firmware : firmwares) {
+      System.err.println("Benchmarking " + firmware + " ...");
+      benchmark.run(firmware, seeds);
+    }
+    benchmark.report(new PrintWriter(System.out), baseline == null ? null : load(baseline));
+    if (save != null) {
+      benchmark.save(save);
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package tinyboycov.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javr.core.AVR;
+import javr.core.AvrDecoder;
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import javr.memory.ElasticByteMemory;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * Renders coverage reports on a background thread, so that the fuzzing loop
+ * never pays for formatting or console I/O. Callers simply submit a snapshot
+ * (which only copies the covered addresses) and, for each snapshot, three files
+ * are written to the report directory:
+ *
+ * <ul>
+ * <li><b>name.dis</b> &mdash; the annotated disassembly (as printed by the
+ * tests).</li>
+ * <li><b>name.lcov</b> &mdash; LCOV-style per-address instruction and branch
+ * data.</li>
+ * <li><b>name.json</b> &mdash; a summary of coverage and the uncovered
+ * branches.</li>
+ * </ul>
+ *
+ * Since the covered addresses are copied on submission, coverage can safely
+ * continue to be recorded whilst the report is written. The firmware itself is
+ * never modified and, hence, is not copied.
+ */
+public class CoverageReporter implements Closeable {
+  /**
+   * The default number of snapshots which can be waiting at any one time.
+   */
+  public static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   * Marks the end of the queue.
+   */
+  private static final Snapshot DONE = new Snapshot(null, null, null);
+
+  private final File directory;
+  private final BlockingQueue<Snapshot> queue;
+  private final Thread worker;
+
+  public CoverageReporter(File directory) {
+    this(directory, DEFAULT_CAPACITY);
+  }
+
+  public CoverageReporter(File directory, int capacity) {
+    this.directory = directory;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.worker = new Thread(this::drain, "coverage-reporter");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Submit a snapshot of the coverage recorded by a given analysis. This never
+   * blocks, and a snapshot is dropped if the queue is already full.
+   *
+   * @param name
+   *          The name of the firmware (which determines the report filenames).
+   * @param firmware
+   *          The firmware tested.
+   * @param coverage
+   *          The coverage obtained.
+   * @return True if the snapshot was accepted.
+   */
+  public boolean submit(String name, HexFile firmware, CoverageAnalysis coverage) {
+    return queue.offer(new Snapshot(name, firmware, copy(coverage)));
+  }
+
+  /**
+   * Submit a snapshot of the coverage recorded by a given analysis, waiting for
+   * space in the queue if necessary. This is intended for the final snapshot of
+   * a run, which must not be dropped.
+   *
+   * @param name
+   *          The name of the firmware (which determines the report filenames).
+   * @param firmware
+   *          The firmware tested.
+   * @param coverage
+   *          The coverage obtained.
+   * @throws InterruptedException
+   */
+  public void put(String name, HexFile firmware, CoverageAnalysis coverage) throws InterruptedException {
+    queue.put(new Snapshot(name, firmware, copy(coverage)));
+  }
+
+  /**
+   * Wait for all outstanding snapshots to be written, and then stop the
+   * background thread.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      queue.put(DONE);
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    directory.mkdirs();
+    try {
+      Snapshot s;
+      while ((s = queue.take()) != DONE) {
+        ElasticByteMemory code = new ElasticByteMemory();
+        s.firmware.uploadTo(code);
+        CoverageAnalysis coverage = new CoverageAnalysis(s.firmware);
+        coverage.record(s.reads);
+        try {
+          write(s.name + ".dis", renderDisassembly(code, coverage));
+          write(s.name + ".lcov", renderLcov(s.name, code, coverage));
+          write(s.name + ".json", renderJson(s.name, code, coverage));
+        } catch (IOException e) {
+          System.err.println("Failed writing coverage report for " + s.name + ": " + e.getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      // Finished
+    }
+  }
+
+  /**
+   * Copy the addresses covered according to a given analysis.
+   *
+   * @param coverage
+   * @return
+   */
+  private static BitSet copy(CoverageAnalysis coverage) {
+    // NOTE: the analysis only ever inspects the first byte of each instruction
+    BitSet reads = new BitSet();
+    int size = coverage.getReachableInstructions().length() / 2;
+    for (int i = 0; i <= size; ++i) {
+      if (coverage.wasCovered(i)) {
+        reads.set(i * 2);
+      }
+    }
+    return reads;
+  }
+
+  private void write(String filename, String contents) throws IOException {
+    try (Writer w = new FileWriter(new File(directory, filename))) {
+      w.write(contents);
+    }
+  }
+
+  /**
+   * Render the annotated disassembly of the reachable instructions, indicating
+   * which were covered and which branches remain uncovered.
+   *
+   * @param code
+   * @param coverage
+   * @return
+   */
+  public static String renderDisassembly(AVR.Memory code, CoverageAnalysis coverage) {
+    StringBuilder out = new StringBuilder();
+    AvrDecoder decoder = new AvrDecoder();
+    int size = code.size() / 2;
+    boolean ignoring = false;
+    int instructions = 0;
+    int coveredInstructions = 0;
+    int branches = 0;
+    int coveredBranches = 0;
+    for (int i = 0; i != size;) {
+      if (coverage.isReachableInstruction(i)) {
+        AvrInstruction insn = decoder.decode(code, i);
+        out.append(String.format("%04X", i));
+        instructions++;
+        if (coverage.wasCovered(i)) {
+          out.append(" [*] ");
+          coveredInstructions++;
+        } else {
+          out.append(" [ ] ");
+        }
+        out.append(insn.toString());
+        if (coverage.isConditionalBranchCovered(i)) {
+          out.append("\t<<<<<<<<<<<<<<<<<<<< (" + branches++ + ")\n");
+          coveredBranches++;
+        } else if (coverage.isConditionalBranch(i)) {
+          out.append("\t<<<<<<<<<<<<<<<<<<<< UNCOVERED (" + branches++ + ")\n");
+        } else {
+          out.append("\n");
+        }
+        i = i + insn.getWidth();
+        ignoring = false;
+      } else {
+        if (!ignoring) {
+          out.append(" ... \n");
+          ignoring = true;
+        }
+        i = i + 1;
+      }
+    }
+    out.append("Instruction Coverage = " + coveredInstructions + " / " + instructions + "(" + code.size() + ")" + "("
+        + ((double) coveredInstructions / (double) instructions) + ")\n");
+    out.append("Branch Coverage = " + coveredBranches + " / " + branches + "("
+        + ((double) coveredBranches / (double) branches) + ")\n");
+    return out.toString();
+  }
+
+  /**
+   * Render LCOV-style coverage data, where line numbers are instruction
+   * addresses. Since only whether an instruction executed is known (not how
+   * often), hit counts are either zero or one.
+   *
+   * @param name
+   * @param code
+   * @param coverage
+   * @return
+   */
+  public static String renderLcov(String name, AVR.Memory code, CoverageAnalysis coverage) {
+    StringBuilder out = new StringBuilder();
+    AvrDecoder decoder = new AvrDecoder();
+    int size = code.size() / 2;
+    int lines = 0;
+    int linesHit = 0;
+    int branches = 0;
+    int branchesHit = 0;
+    out.append("TN:\nSF:" + name + "\n");
+    for (int i = 0; i < size;) {
+      if (coverage.isReachableInstruction(i)) {
+        boolean covered = coverage.wasCovered(i);
+        out.append("DA:" + i + "," + (covered ? 1 : 0) + "\n");
+        lines++;
+        linesHit += covered ? 1 : 0;
+        if (coverage.isConditionalBranch(i)) {
+          boolean taken = coverage.isConditionalBranchCovered(i);
+          out.append("BRDA:" + i + ",0,0," + (covered ? (taken ? "1" : "0") : "-") + "\n");
+          branches++;
+          branchesHit += taken ? 1 : 0;
+        }
+        i = i + decoder.decode(code, i).getWidth();
+      } else {
+        i = i + 1;
+      }
+    }
+    out.append("BRF:" + branches + "\nBRH:" + branchesHit + "\n");
+    out.append("LF:" + lines + "\nLH:" + linesHit + "\n");
+    out.append("end_of_record\n");
+    return out.toString();
+  }
+
+  /**
+   * Render a JSON summary of the coverage obtained, including every conditional
+   * branch which was not covered.
+   *
+   * @param name
+   * @param code
+   * @param coverage
+   * @return
+   */
+  public static String renderJson(String name, AVR.Memory code, CoverageAnalysis coverage) {
+    StringBuilder out = new StringBuilder();
+    AvrDecoder decoder = new AvrDecoder();
+    int size = code.size() / 2;
+    out.append("{\n");
+    out.append("  \"firmware\": \"" + escape(name) + "\",\n");
+    out.append("  \"instructionCoverage\": " + coverage.getInstructionCoverage() + ",\n");
+    out.append("  \"branchCoverage\": " + coverage.getBranchCoverage() + ",\n");
+    out.append("  \"uncoveredBranches\": [");
+    boolean first = true;
+    for (int i = 0; i < size;) {
+      if (coverage.isReachableInstruction(i)) {
+        AvrInstruction insn = decoder.decode(code, i);
+        if (coverage.isConditionalBranch(i) && !coverage.isConditionalBranchCovered(i)) {
+          out.append(first ? "\n" : ",\n");
+          out.append("    { \"address\": " + i + ", \"instruction\": \"" + escape(insn.toString())
+              + "\", \"reached\": " + coverage.wasCovered(i) + " }");
+          first = false;
+        }
+        i = i + insn.getWidth();
+      } else {
+        i = i + 1;
+      }
+    }
+    out.append(first ? "]\n" : "\n  ]\n");
+    out.append("}\n");
+    return out.toString();
+  }
+
+  private static String escape(String str) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i != str.length(); ++i) {
+      char c = str.charAt(i);
+      switch (c) {
+      case '"':
+      case '\\':
+        out.append('\\').append(c);
+        break;
+      case '\t':
+        out.append("\\t");
+        break;
+      case '\n':
+        out.append("\\n");
+        break;
+      default:
+        if (c < 0x20) {
+          out.append(String.format("\\u%04x", (int) c));
+        } else {
+          out.append(c);
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * A copy of the coverage of some firmware at some point.
+   */
+  private static final class Snapshot {
+    public final String name;
+    public final HexFile firmware;
+    public final BitSet reads;
+
+    public Snapshot(String name, HexFile firmware, BitSet reads) {
+      this.name = name;
+      this.firmware = firmware;
+      this.reads = reads;
+    }
+  }
+}
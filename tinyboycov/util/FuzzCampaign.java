@@ -0,0 +1,194 @@
+package tinyboycov.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.BiConsumer;
+
+import javr.io.HexFile;
+import tinyboy.core.ControlPad;
+import tinyboy.core.TinyBoyEmulator;
+import tinyboy.core.TinyBoyInputSequence;
+import tinyboy.util.AutomatedTester;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * A single fuzzing campaign of a given firmware using a given input generator.
+ * This sits between the automated tester and the generator, and keeps track of
+ * how much effort (executions, emulated cycles and wall time) was required to
+ * reach each coverage milestone. It also allows a campaign to be limited by
+ * wall-clock time, which the automated tester does not support.
+ */
+public class FuzzCampaign implements AutomatedTester.InputGenerator<TinyBoyInputSequence> {
+  /**
+   * The branch coverage milestones (in percent) which are tracked.
+   */
+  public static final double[] MILESTONES = { 50.0, 80.0, 90.0, 95.0 };
+  /**
+   * ONE second worth of cycles running at 8MHz, which is the budget for each
+   * input used by the tests.
+   */
+  public static final int ONE_SECOND = 8_000_000;
+
+  private final TinyBoyEmulator tinyBoy;
+  private final HexFile firmware;
+  private final AutomatedTester.InputGenerator<TinyBoyInputSequence> generator;
+  private final CoverageAnalysis coverage;
+  /**
+   * The maximum number of cycles to emulate for any one input.
+   */
+  private final int cycles;
+
+  /**
+   * Optionally notified of every input executed, along with its coverage.
+   */
+  private BiConsumer<TinyBoyInputSequence, BitSet> observer;
+  private volatile boolean stopped;
+
+  private long start;
+  private long deadline;
+  private long executions;
+  private long emulatedCycles;
+  private final long[] milestoneExecutions = new long[MILESTONES.length];
+  private final long[] milestoneCycles = new long[MILESTONES.length];
+  private final long[] milestoneNanos = new long[MILESTONES.length];
+
+  public FuzzCampaign(TinyBoyEmulator tinyBoy, HexFile firmware,
+      AutomatedTester.InputGenerator<TinyBoyInputSequence> generator, int cycles) {
+    this.tinyBoy = tinyBoy;
+    this.firmware = firmware;
+    this.generator = generator;
+    this.coverage = new CoverageAnalysis(firmware);
+    this.cycles = cycles;
+  }
+
+  /**
+   * Run the campaign until either the coverage target is reached, or the budget
+   * is exhausted.
+   *
+   * @param maxExecutions
+   *          The maximum number of inputs to execute.
+   * @param maxNanos
+   *          The maximum wall-clock time to run for (or
+   *          <code>Long.MAX_VALUE</code> for no limit).
+   * @param target
+   *          The branch coverage target (in percent).
+   * @return
+   */
+  public CoverageAnalysis run(int maxExecutions, long maxNanos, double target) {
+    executions = 0;
+    emulatedCycles = 0;
+    Arrays.fill(milestoneExecutions, -1);
+    Arrays.fill(milestoneCycles, -1);
+    Arrays.fill(milestoneNanos, -1);
+    start = System.nanoTime();
+    deadline = maxNanos == Long.MAX_VALUE ? Long.MAX_VALUE : start + maxNanos;
+    new AutomatedTester(tinyBoy, firmware, this).run(maxExecutions, cycles, target);
+    return coverage;
+  }
+
+  /**
+   * Set the observer to be notified of every input executed, along with its
+   * coverage. This is called on the thread running the campaign.
+   *
+   * @param observer
+   */
+  public void setObserver(BiConsumer<TinyBoyInputSequence, BitSet> observer) {
+    this.observer = observer;
+  }
+
+  /**
+   * Stop the campaign after the current input (e.g. because some other campaign
+   * reached the target). This can be called from any thread.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public TinyBoyInputSequence generate() {
+    if (stopped || System.nanoTime() > deadline) {
+      // Out of time, so stop the tester
+      return null;
+    }
+    return generator.generate();
+  }
+
+  @Override
+  public void record(TinyBoyInputSequence input, BitSet output) {
+    executions++;
+    emulatedCycles += Math.min(cycles, input.size() / ControlPad.Button.values().length);
+    generator.record(input, output);
+    coverage.record(output);
+    if (observer != null) {
+      observer.accept(input, output);
+    }
+    double branchCoverage = coverage.getBranchCoverage();
+    for (int i = 0; i != MILESTONES.length; ++i) {
+      if (milestoneExecutions[i] < 0 && branchCoverage >= MILESTONES[i]) {
+        milestoneExecutions[i] = executions;
+        milestoneCycles[i] = emulatedCycles;
+        milestoneNanos[i] = System.nanoTime() - start;
+      }
+    }
+  }
+
+  /**
+   * Get the coverage obtained so far.
+   *
+   * @return
+   */
+  public CoverageAnalysis getCoverage() {
+    return coverage;
+  }
+
+  /**
+   * Get the number of inputs executed so far.
+   *
+   * @return
+   */
+  public long getExecutions() {
+    return executions;
+  }
+
+  /**
+   * Get the total number of cycles emulated so far.
+   *
+   * @return
+   */
+  public long getEmulatedCycles() {
+    return emulatedCycles;
+  }
+
+  /**
+   * Get the number of executions needed to reach the ith milestone, or
+   * <code>-1</code> if it was not reached.
+   *
+   * @param i
+   * @return
+   */
+  public long getMilestoneExecutions(int i) {
+    return milestoneExecutions[i];
+  }
+
+  /**
+   * Get the number of emulated cycles needed to reach the ith milestone, or
+   * <code>-1</code> if it was not reached.
+   *
+   * @param i
+   * @return
+   */
+  public long getMilestoneCycles(int i) {
+    return milestoneCycles[i];
+  }
+
+  /**
+   * Get the wall time (in nanoseconds) needed to reach the ith milestone, or
+   * <code>-1</code> if it was not reached.
+   *
+   * @param i
+   * @return
+   */
+  public long getMilestoneNanos(int i) {
+    return milestoneNanos[i];
+  }
+}
@@ -0,0 +1,171 @@
+package tinyboycov.util;
+
+import java.util.Arrays;
+
+/**
+ * Simple non-parametric statistics for comparing fuzzing campaigns. Time to
+ * coverage is heavily skewed (and often censored when a campaign never reaches
+ * a milestone), so medians and rank-based tests are used throughout. Campaigns
+ * which never reached a milestone should be given a value of
+ * <code>Double.POSITIVE_INFINITY</code>, which ranks them as slower than any
+ * campaign which did.
+ */
+public class Statistics {
+  /**
+   * The z value for a two-sided 95% confidence level.
+   */
+  private static final double Z_95 = 1.959964;
+
+  /**
+   * Compute the median of a given sample.
+   *
+   * @param sample
+   * @return
+   */
+  public static double median(double[] sample) {
+    double[] sorted = sorted(sample);
+    int n = sorted.length;
+    if (n == 0) {
+      return Double.NaN;
+    } else if (n % 2 == 1) {
+      return sorted[n / 2];
+    } else {
+      return (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+  }
+
+  /**
+   * Compute a distribution-free 95% confidence interval for the median of a
+   * given sample, using the order statistics given by the normal approximation
+   * to the binomial distribution.
+   *
+   * @param sample
+   * @return An array holding the lower and upper bounds.
+   */
+  public static double[] medianConfidenceInterval(double[] sample) {
+    double[] sorted = sorted(sample);
+    int n = sorted.length;
+    if (n == 0) {
+      return new double[] { Double.NaN, Double.NaN };
+    }
+    double spread = Z_95 * Math.sqrt(n) / 2;
+    int lower = (int) Math.floor(n / 2.0 - spread);
+    int upper = (int) Math.ceil(1 + n / 2.0 + spread);
+    lower = Math.max(1, lower);
+    upper = Math.min(n, upper);
+    return new double[] { sorted[lower - 1], sorted[upper - 1] };
+  }
+
+  /**
+   * Compute the Mann-Whitney U statistic for the first sample, where ties are
+   * given their average rank.
+   *
+   * @param xs
+   * @param ys
+   * @return
+   */
+  public static double mannWhitneyU(double[] xs, double[] ys) {
+    double[] ranks = ranks(xs, ys);
+    double sum = 0;
+    for (int i = 0; i != xs.length; ++i) {
+      sum += ranks[i];
+    }
+    return sum - ((double) xs.length * (xs.length + 1)) / 2;
+  }
+
+  /**
+   * Compute the two-sided p-value of the Mann-Whitney U test for two samples,
+   * using the normal approximation with continuity and tie corrections.
+   *
+   * @param xs
+   * @param ys
+   * @return
+   */
+  public static double mannWhitneyP(double[] xs, double[] ys) {
+    int n1 = xs.length;
+    int n2 = ys.length;
+    int n = n1 + n2;
+    if (n1 == 0 || n2 == 0) {
+      return Double.NaN;
+    }
+    double u = mannWhitneyU(xs, ys);
+    double mean = (double) n1 * n2 / 2;
+    // Correct the variance for ties
+    double[] all = sorted(concat(xs, ys));
+    double ties = 0;
+    for (int i = 0; i < n;) {
+      int j = i;
+      while (j < n && all[j] == all[i]) {
+        j++;
+      }
+      double t = j - i;
+      ties += t * t * t - t;
+      i = j;
+    }
+    double variance = ((double) n1 * n2 / 12) * ((n + 1) - ties / ((double) n * (n - 1)));
+    if (variance <= 0) {
+      // All values are identical
+      return 1.0;
+    }
+    double z = (Math.abs(u - mean) - 0.5) / Math.sqrt(variance);
+    return Math.min(1.0, 2 * (1 - normalCdf(Math.max(0, z))));
+  }
+
+  /**
+   * Compute the cumulative distribution function of the standard normal
+   * distribution (Abramowitz and Stegun 7.1.26).
+   *
+   * @param z
+   * @return
+   */
+  public static double normalCdf(double z) {
+    double x = Math.abs(z) / Math.sqrt(2);
+    double t = 1 / (1 + 0.3275911 * x);
+    double erf = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t
+        * Math.exp(-x * x);
+    return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+  }
+
+  /**
+   * Rank the values of two samples together, returning the ranks in the order
+   * of the first sample followed by the second.
+   *
+   * @param xs
+   * @param ys
+   * @return
+   */
+  private static double[] ranks(double[] xs, double[] ys) {
+    double[] all = concat(xs, ys);
+    Integer[] order = new Integer[all.length];
+    for (int i = 0; i != order.length; ++i) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(all[a], all[b]));
+    double[] ranks = new double[all.length];
+    for (int i = 0; i < order.length;) {
+      int j = i;
+      while (j < order.length && all[order[j]] == all[order[i]]) {
+        j++;
+      }
+      // Positions i..j-1 are tied, so share the average of ranks i+1..j
+      double rank = (i + 1 + j) / 2.0;
+      for (int k = i; k != j; ++k) {
+        ranks[order[k]] = rank;
+      }
+      i = j;
+    }
+    return ranks;
+  }
+
+  private static double[] concat(double[] xs, double[] ys) {
+    double[] all = Arrays.copyOf(xs, xs.length + ys.length);
+    System.arraycopy(ys, 0, all, xs.length, ys.length);
+    return all;
+  }
+
+  private static double[] sorted(double[] sample) {
+    double[] sorted = sample.clone();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+}